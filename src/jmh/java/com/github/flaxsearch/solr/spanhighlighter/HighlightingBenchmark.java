@@ -0,0 +1,280 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmarks of the stages of highlighting, over a synthetic corpus of documents made of words w0, w1, ... with
+ * a skewed (roughly Zipfian) distribution, so that low-numbered words are common. Run with -prof gc to see the
+ * allocation rate as well as the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HighlightingBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HighlightingBenchmark.class);
+
+    static final String FIELD = "text";
+    static final int VOCABULARY = 2000;
+
+    // the number of documents on a page (the batch engine's index costs more to build than it saves on small pages)
+    @Param({ "10", "50" })
+    public int pageSize;
+
+    // the number of words in each document
+    @Param({ "100", "1000", "10000" })
+    public int docLength;
+
+    // the number of values the words of each document are split between
+    @Param({ "1", "8" })
+    public int values;
+
+    @Param({ "1", "4" })
+    public int tasks;
+
+    @Param({ "term", "phrase", "wildcard", "terms", "boolean" })
+    public String queryType;
+
+    private Query[] queries;
+    private List<HighlightingTask> taskList;
+    private Document[] docs;
+    private int[] page;
+    private DocumentHighlighter highlighter;
+    private Directory directory;
+    private IndexReader reader;
+    private IndexSearcher indexSearcher;
+    private IndexSearcher memorySearcher;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        Analyzer analyzer = new StandardAnalyzer();
+
+        org.apache.lucene.document.FieldType offsetsType = new org.apache.lucene.document.FieldType(TextField.TYPE_STORED);
+        offsetsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        docs = new Document[pageSize];
+        for (int d = 0; d < pageSize; d++) {
+            docs[d] = new Document();
+            for (int v = 0; v < values; v++) {
+                docs[d].add(new Field(FIELD, text(random, docLength / values), offsetsType));
+            }
+        }
+
+        queries = new Query[tasks];
+        taskList = new ArrayList<>();
+        for (int t = 0; t < tasks; t++) {
+            queries[t] = query(t);
+            taskList.add(new HighlightingTask(t, QueryRewriter.INSTANCE.rewrite(queries[t]), "<em>", "</em>"));
+        }
+
+        FieldType fieldType = mock(FieldType.class);
+        when(fieldType.getIndexAnalyzer()).thenReturn(analyzer);
+        SchemaField field = mock(SchemaField.class);
+        when(field.getType()).thenReturn(fieldType);
+        IndexSchema schema = mock(IndexSchema.class);
+        when(schema.getFieldOrNull(FIELD)).thenReturn(field);
+        // unpooled, as a request thread would be: only the highlighter's own threads reuse memory indexes
+        highlighter = new DocumentHighlighter(schema, taskList, new String[] { FIELD });
+
+        // the main index, for the postings engine
+        directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer))) {
+            for (Document doc : docs) {
+                writer.addDocument(doc);
+            }
+        }
+        reader = DirectoryReader.open(directory);
+        indexSearcher = new IndexSearcher(reader);
+        page = new int[pageSize];
+        for (int i = 0; i < pageSize; i++) {
+            page[i] = i;
+        }
+        if (PostingsEngine.create(indexSearcher, taskList) == null) {
+            // e.g. w1* matches over 1024 terms in the larger corpora, so SpanHighlighter would analyse instead
+            LOG.warn("queries can't be expanded against the index: highlightPagePostings measures analysis");
+        }
+        Document[] loaded = new Document[pageSize];
+        for (int i = 0; i < pageSize; i++) {
+            loaded[i] = reader.document(i);
+        }
+        if (BatchEngine.collect(highlighter, page, loaded, HighlightBudget.UNLIMITED) == null) {
+            LOG.warn("queries can't be expanded against the batch index: highlightPageBatch measures analysis");
+        }
+
+        // a single-document index, for span collection alone
+        MemoryIndex index = new MemoryIndex(true);
+        for (IndexableField value : docs[0]) {
+            index.addField(FIELD, value.stringValue(), analyzer);
+        }
+        memorySearcher = index.createSearcher();
+        memorySearcher.setQueryCache(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    private static String text(Random random, int words) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            builder.append('w').append((int) (VOCABULARY * Math.pow(random.nextDouble(), 3)));
+            builder.append(i % 15 == 14 ? ". " : " ");
+        }
+        return builder.toString();
+    }
+
+    private static Term term(int word) {
+        return new Term(FIELD, "w" + word);
+    }
+
+    private Query query(int t) {
+        switch (queryType) {
+            case "term":
+                return new TermQuery(term(t + 1));
+            case "phrase":
+                return new PhraseQuery(2, FIELD, "w" + t, "w" + (t + 1));
+            case "wildcard":
+                return new WildcardQuery(new Term(FIELD, "w" + (t + 1) + "*"));
+            case "terms":
+                List<BytesRef> terms = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    terms.add(new BytesRef("w" + (t * 20 + i)));
+                }
+                return new TermInSetQuery(FIELD, terms);
+            case "boolean":
+                return new BooleanQuery.Builder()
+                        .add(new TermQuery(term(t)), Occur.SHOULD)
+                        .add(new TermQuery(term(t + 5)), Occur.SHOULD)
+                        .add(new PhraseQuery(FIELD, "w" + (t + 1), "w" + (t + 2)), Occur.SHOULD)
+                        .build();
+            default:
+                throw new IllegalArgumentException("unknown query type " + queryType);
+        }
+    }
+
+    @Benchmark
+    public void rewrite(Blackhole bh) {
+        for (Query query : queries) {
+            bh.consume(QueryRewriter.INSTANCE.rewrite(query));
+        }
+    }
+
+    @Benchmark
+    public OffsetCollector collectSpans() throws IOException {
+        LeafReaderContext leaf = memorySearcher.getIndexReader().leaves().get(0);
+        OffsetCollector collector = new OffsetCollector();
+        for (HighlightingTask task : taskList) {
+            Scorer scorer = memorySearcher.createNormalizedWeight(task.query, true).scorer(leaf);
+            if (scorer != null && scorer.iterator().nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                collector.setTask(task);
+                SpanExtractor.collect(scorer, collector);
+            }
+        }
+        return collector;
+    }
+
+    @Benchmark
+    public Map<String, List<String>> highlightDoc() {
+        next = (next + 1) % pageSize;
+        return highlighter.highlightDoc(docs[next]);
+    }
+
+    @Benchmark
+    public void highlightPageAnalysis(Blackhole bh) throws IOException {
+        for (int docId : page) {
+            bh.consume(highlighter.highlightDoc(reader, docId, reader.document(docId)));
+        }
+    }
+
+    @Benchmark
+    public void highlightPagePostings(Blackhole bh) throws IOException {
+        PostingsEngine engine = PostingsEngine.create(indexSearcher, taskList);
+        if (engine == null) {
+            // fall back to analysis, as SpanHighlighter does
+            highlightPageAnalysis(bh);
+            return;
+        }
+        Map<Integer, OffsetCollector> offsets = engine.collect(page);
+        for (int docId : page) {
+            bh.consume(highlighter.render(reader.document(docId), offsets.get(docId)));
+        }
+    }
+
+    @Benchmark
+    public void highlightPageBatch(Blackhole bh) throws IOException {
+        Document[] loaded = new Document[page.length];
+        for (int i = 0; i < page.length; i++) {
+            loaded[i] = reader.document(page[i]);
+        }
+        Map<Integer, OffsetCollector> offsets = BatchEngine.collect(highlighter, page, loaded, HighlightBudget.UNLIMITED);
+        if (offsets == null) {
+            // fall back to analysis, as SpanHighlighter does
+            highlightPageAnalysis(bh);
+            return;
+        }
+        for (int i = 0; i < page.length; i++) {
+            bh.consume(highlighter.render(loaded[i], offsets.get(page[i])));
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.BytesTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * The analysed form of a stored field of a document: the terms (as the bytes that are indexed, so binary and
+ * collation terms survive), position increments and lengths, and offsets of the tokens of each of its values,
+ * packed into flat arrays; fields whose tokens carry payloads are not recorded. A field can be replayed into a
+ * per-document index any number of times without running its analyzer again, so these are kept in a Solr cache
+ * (which lives as long as the searcher, as the key is an internal document id). Both keys and values report their sizes, so the cache can be bounded by
+ * memory (maxRamMB) as well as by entries.
+ */
+public class AnalyzedField implements Accountable {
+
+    private static final long BASE_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(AnalyzedField.class);
+
+    private final byte[] termBytes;
+    private final int[] termEnds;       // the end of each token's term in termBytes
+    private final int[] posIncs;
+    private final int[] posLengths;
+    private final int[] startOffsets;
+    private final int[] endOffsets;
+    private final int[] valueEnds;      // one after the last token of each value
+    private final int[] finalOffsets;   // the final offset (the length) of each value
+    private final int length;
+
+    private AnalyzedField(Recorder recorder) {
+        this.termBytes = Arrays.copyOf(recorder.termBytes, recorder.termLength);
+        this.termEnds = Arrays.copyOf(recorder.termEnds, recorder.tokens);
+        this.posIncs = Arrays.copyOf(recorder.posIncs, recorder.tokens);
+        this.posLengths = Arrays.copyOf(recorder.posLengths, recorder.tokens);
+        this.startOffsets = Arrays.copyOf(recorder.startOffsets, recorder.tokens);
+        this.endOffsets = Arrays.copyOf(recorder.endOffsets, recorder.tokens);
+        this.valueEnds = Arrays.copyOf(recorder.valueEnds, recorder.values);
+        this.finalOffsets = Arrays.copyOf(recorder.finalOffsets, recorder.values);
+        this.length = recorder.length;
+    }
+
+    /**
+     * @return the number of values in the field.
+     */
+    public int size() {
+        return valueEnds.length;
+    }
+
+    /**
+     * @return the total number of characters analysed, over all the values.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return the tokens of a value, as they came out of the analyzer.
+     */
+    public TokenStream replay(int value) {
+        return new ReplayStream(value == 0 ? 0 : valueEnds[value - 1], valueEnds[value], finalOffsets[value]);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES + RamUsageEstimator.sizeOf(termBytes) + RamUsageEstimator.sizeOf(termEnds)
+                + RamUsageEstimator.sizeOf(posIncs) + RamUsageEstimator.sizeOf(posLengths) + RamUsageEstimator.sizeOf(startOffsets)
+                + RamUsageEstimator.sizeOf(endOffsets) + RamUsageEstimator.sizeOf(valueEnds)
+                + RamUsageEstimator.sizeOf(finalOffsets);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AnalyzedField(values=%d, tokens=%d, length=%d)", valueEnds.length, termEnds.length, length);
+    }
+
+    private class ReplayStream extends TokenStream {
+        private final BytesTermAttribute termAtt = addAttribute(BytesTermAttribute.class);
+        private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        private final PositionLengthAttribute posLengthAtt = addAttribute(PositionLengthAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final BytesRef term = new BytesRef(termBytes);
+        private final int from;
+        private final int to;
+        private final int finalOffset;
+        private int next;
+
+        ReplayStream(int from, int to, int finalOffset) {
+            this.from = from;
+            this.to = to;
+            this.finalOffset = finalOffset;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            next = from;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next == to) {
+                return false;
+            }
+            clearAttributes();
+            int termStart = next == 0 ? 0 : termEnds[next - 1];
+            term.offset = termStart;
+            term.length = termEnds[next] - termStart;
+            termAtt.setBytesRef(term);
+            posIncAtt.setPositionIncrement(posIncs[next]);
+            posLengthAtt.setPositionLength(posLengths[next]);
+            offsetAtt.setOffset(startOffsets[next], endOffsets[next]);
+            next++;
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            offsetAtt.setOffset(finalOffset, finalOffset);
+        }
+    }
+
+    /**
+     * Records the tokens of a field's values as they are analysed.
+     */
+    static class Recorder {
+        private byte[] termBytes = new byte[256];
+        private int termLength;
+        private int[] termEnds = new int[16];
+        private int[] posIncs = new int[16];
+        private int[] posLengths = new int[16];
+        private int[] startOffsets = new int[16];
+        private int[] endOffsets = new int[16];
+        private int tokens;
+        private int[] valueEnds = new int[4];
+        private int[] finalOffsets = new int[4];
+        private int values;
+        private int length;
+        private boolean payloads;
+
+        /**
+         * @return a stream which records the tokens of the next value as they pass through it.
+         */
+        TokenStream record(TokenStream in, int valueLength) {
+            return new TokenFilter(in) {
+                private final TermToBytesRefAttribute termAtt = addAttribute(TermToBytesRefAttribute.class);
+                private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+                private final PositionLengthAttribute posLengthAtt = addAttribute(PositionLengthAttribute.class);
+                private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+                private final PayloadAttribute payloadAtt = hasAttribute(PayloadAttribute.class)
+                        ? getAttribute(PayloadAttribute.class) : null;
+
+                @Override
+                public boolean incrementToken() throws IOException {
+                    if (input.incrementToken() == false) {
+                        return false;
+                    }
+                    if (payloadAtt != null && payloadAtt.getPayload() != null && payloadAtt.getPayload().length > 0) {
+                        // not replayed, so the field can't be cached
+                        payloads = true;
+                    }
+                    addToken(termAtt.getBytesRef(), posIncAtt.getPositionIncrement(), posLengthAtt.getPositionLength(),
+                            offsetAtt.startOffset(), offsetAtt.endOffset());
+                    return true;
+                }
+
+                @Override
+                public void end() throws IOException {
+                    super.end();
+                    addValue(offsetAtt.endOffset(), valueLength);
+                }
+            };
+        }
+
+        private void addToken(BytesRef term, int posInc, int posLength, int start, int end) {
+            termBytes = ArrayUtil.grow(termBytes, termLength + term.length);
+            System.arraycopy(term.bytes, term.offset, termBytes, termLength, term.length);
+            termLength += term.length;
+            if (tokens == termEnds.length) {
+                termEnds = ArrayUtil.grow(termEnds, tokens + 1);
+                posIncs = Arrays.copyOf(posIncs, termEnds.length);
+                posLengths = Arrays.copyOf(posLengths, termEnds.length);
+                startOffsets = Arrays.copyOf(startOffsets, termEnds.length);
+                endOffsets = Arrays.copyOf(endOffsets, termEnds.length);
+            }
+            termEnds[tokens] = termLength;
+            posIncs[tokens] = posInc;
+            posLengths[tokens] = posLength;
+            startOffsets[tokens] = start;
+            endOffsets[tokens] = end;
+            tokens++;
+        }
+
+        private void addValue(int finalOffset, int valueLength) {
+            if (values == valueEnds.length) {
+                valueEnds = ArrayUtil.grow(valueEnds, values + 1);
+                finalOffsets = Arrays.copyOf(finalOffsets, valueEnds.length);
+            }
+            valueEnds[values] = tokens;
+            finalOffsets[values] = finalOffset;
+            values++;
+            length += valueLength;
+        }
+
+        /**
+         * @return the recorded field, or null if the given number of values were not all recorded, or if its
+         * tokens had payloads.
+         */
+        AnalyzedField build(int expectedValues) {
+            return values == expectedValues && payloads == false ? new AnalyzedField(this) : null;
+        }
+    }
+
+    /**
+     * The cache key for a field of a document.
+     */
+    public static class Key implements Accountable {
+        private static final long BASE_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(Key.class);
+
+        final int docId;
+        final String field;
+
+        public Key(int docId, String field) {
+            this.docId = docId;
+            this.field = field;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            // the field name is shared with the schema
+            return BASE_RAM_BYTES;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return docId == that.docId && Objects.equals(field, that.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * docId + field.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return field + "@" + docId;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.DelegatingAnalyzerWrapper;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.flaxsearch.solr.spanhighlighter.HighlightFieldPlan.HighlightField;
+
+/**
+ * Collects the offsets to highlight for a whole page of documents at once, by analysing the highlight fields of all
+ * of them into a single in-memory index, and then running each task's query just once across it (as the postings
+ * engine does against the main index). Weights are built, and terms looked up, once per page rather than once per
+ * document. The index's documents are in page order, so each one's id is its position in the page. Building the
+ * index costs more than a memory index per document, so it pays off only for larger pages and more tasks (see
+ * HighlightingBenchmark.highlightPageBatch).
+ */
+public class BatchEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchEngine.class);
+
+    private static final FieldType OFFSETS_TYPE = new FieldType();
+    static {
+        OFFSETS_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        OFFSETS_TYPE.setTokenized(true);
+        OFFSETS_TYPE.setOmitNorms(true);
+        OFFSETS_TYPE.freeze();
+    }
+
+    private BatchEngine() {}
+
+    /**
+     * Collect the offsets for each of the given documents.
+     * @param docIds the (top level) ids of the documents
+     * @param docs the stored fields of each of the documents, or null for those which needn't be highlighted
+     * @return a collector for each of the documents, keyed on its id, or null if the tasks' queries cannot be
+     * expanded against the batch index, so the documents must be highlighted one at a time.
+     */
+    public static Map<Integer, OffsetCollector> collect(DocumentHighlighter highlighter, int[] docIds, Document[] docs,
+                                                        HighlightBudget budget) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new HighlightAnalyzer(highlighter));
+        config.setMergePolicy(NoMergePolicy.INSTANCE);      // keep the documents in page order
+        config.setCommitOnClose(false);
+        config.setUseCompoundFile(false);                   // the segment is read once, so don't copy it into one file
+
+        boolean[] truncated = new boolean[docs.length];
+        int[] page = new int[docs.length];
+        try (RAMDirectory directory = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(directory, config)) {
+            for (int i = 0; i < docs.length; i++) {
+                page[i] = i;
+                Document batchDoc = new Document();
+                if (docs[i] != null) {
+                    truncated[i] = addFields(highlighter, docs[i], batchDoc, budget);
+                }
+                writer.addDocument(batchDoc);
+            }
+
+            Map<Integer, OffsetCollector> batchOffsets;
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setQueryCache(null);
+                PostingsEngine engine = PostingsEngine.create(searcher, highlighter.distinctTasks);
+                if (engine == null) {
+                    return null;
+                }
+                batchOffsets = engine.collect(page, budget);
+            }
+
+            Map<Integer, OffsetCollector> offsets = new HashMap<>();
+            for (int i = 0; i < docs.length; i++) {
+                OffsetCollector collector = batchOffsets.get(i);
+                collector.setTruncated(collector.isTruncated() || truncated[i]);
+                offsets.put(docIds[i], collector);
+            }
+            LOG.debug("collected offsets for {} documents in a batch", docs.length);
+            return offsets;
+        }
+    }
+
+    /**
+     * Add the text of the highlight fields of a document to the batch document, up to the highlighter's limits.
+     * @return true, iff some of the text was left out.
+     */
+    private static boolean addFields(DocumentHighlighter highlighter, Document doc, Document batchDoc, HighlightBudget budget) {
+        Map<String, Integer> fieldChars = new HashMap<>();
+        int docChars = 0;
+        boolean truncated = false;
+        for (IndexableField field : doc) {
+            HighlightField hlField = highlighter.getHighlightField(field.name());
+            String value = field.stringValue();
+            if (hlField == null || hlField.analyzer == null || value == null) {
+                continue;
+            }
+            int used = fieldChars.getOrDefault(field.name(), 0);
+            int limit = Math.min(highlighter.maxAnalyzedChars - used, highlighter.maxAnalyzedCharsPerDoc - docChars);
+            if (limit <= 0 || budget.isExhausted()) {
+                truncated = true;
+                continue;
+            }
+            if (value.length() > limit) {
+                // cut short as analysis does, so a token straddling the limit is left out rather than split
+                batchDoc.add(new LimitedField(field.name(), value, limit));
+                truncated = true;
+            }
+            else {
+                batchDoc.add(new Field(field.name(), value, OFFSETS_TYPE));
+            }
+            int analysed = Math.min(value.length(), limit);
+            fieldChars.put(field.name(), used + analysed);
+            docChars += analysed;
+            highlighter.metrics.analyzedChars.inc(analysed);
+            budget.addChars(analysed);
+        }
+        return truncated;
+    }
+
+    /**
+     * A value whose tokens are indexed only up to a limit.
+     */
+    private static class LimitedField extends Field {
+        private final int limit;
+
+        LimitedField(String name, String value, int limit) {
+            super(name, value, OFFSETS_TYPE);
+            this.limit = limit;
+        }
+
+        @Override
+        public TokenStream tokenStream(Analyzer analyzer, TokenStream reuse) {
+            return new DocumentHighlighter.LimitEndOffsetFilter(super.tokenStream(analyzer, reuse), limit);
+        }
+    }
+
+    /**
+     * Analyses each field with the analyzer the highlighter would use for it.
+     */
+    private static class HighlightAnalyzer extends DelegatingAnalyzerWrapper {
+        private static final Analyzer KEYWORD = new KeywordAnalyzer();
+        private final DocumentHighlighter highlighter;
+
+        HighlightAnalyzer(DocumentHighlighter highlighter) {
+            super(PER_FIELD_REUSE_STRATEGY);
+            this.highlighter = highlighter;
+        }
+
+        @Override
+        protected Analyzer getWrappedAnalyzer(String fieldName) {
+            HighlightField hlField = highlighter.getHighlightField(fieldName);
+            return hlField == null || hlField.analyzer == null ? KEYWORD : hlField.analyzer;
+        }
+    }
+}
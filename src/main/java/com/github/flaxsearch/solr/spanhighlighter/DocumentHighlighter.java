@@ -2,228 +2,579 @@ package com.github.flaxsearch.solr.spanhighlighter;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.regex.Pattern;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexableField;
-import org.apache.lucene.index.PostingsEnum;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
-import org.apache.lucene.search.SimpleCollector;
-import org.apache.lucene.search.spans.SpanCollector;
-import org.apache.solr.schema.FieldType;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.highlight.TokenSources;
+import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.search.SolrCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Timer;
+import com.github.flaxsearch.solr.spanhighlighter.HighlightFieldPlan.HighlightField;
+import com.github.flaxsearch.solr.spanhighlighter.OffsetCollector.FieldOffsets;
 
 
 public class DocumentHighlighter {
     
     private static final Logger LOG = LoggerFactory.getLogger(DocumentHighlighter.class);
 
+    // each thread reuses its collector (and its offset arrays) for every document it highlights
+    private static final ThreadLocal<OffsetCollector> COLLECTORS = ThreadLocal.withInitial(OffsetCollector::new);
+
+    // and its builder for the highlighted text, unless that grew very large
+    private static final ThreadLocal<StringBuilder> BUILDERS = ThreadLocal.withInitial(StringBuilder::new);
+    
+    static final int MAX_RETAINED_CHARS = 1024 * 1024;
+
     IndexSchema schema;
     List<HighlightingTask> tasks;
-    List<Pattern> hlFieldPatterns;
+    List<HighlightingTask> distinctTasks;
+    Query combinedQuery;
+    HighlightFieldPlan fieldPlan;
+    Set<String> queryFields;
+    MemoryIndexPool indexPool;
+    int maxTagsLength;
+    Fragmenter fragmenter;
+    int maxAnalyzedChars = Integer.MAX_VALUE;
+    int maxAnalyzedCharsPerDoc = Integer.MAX_VALUE;
+    SolrCache<AnalyzedField.Key, AnalyzedField> tokenCache;
+    HighlightMetrics metrics = HighlightMetrics.UNREPORTED;
+    HighlightBudget budget = HighlightBudget.UNLIMITED;
     
     public DocumentHighlighter(IndexSchema schema, List<HighlightingTask> tasks, String[] hlFields) {
+        this(schema, tasks, hlFields, MemoryIndexPool.UNPOOLED);
+    }
+    
+    public DocumentHighlighter(IndexSchema schema, List<HighlightingTask> tasks, String[] hlFields, MemoryIndexPool indexPool) {
+        this(schema, tasks, HighlightFieldPlan.compile(schema, hlFields), indexPool);
+    }
+    
+    public DocumentHighlighter(IndexSchema schema, List<HighlightingTask> tasks, HighlightFieldPlan fieldPlan, MemoryIndexPool indexPool) {
         this.schema = schema;
         this.tasks = tasks;
-        this.hlFieldPatterns = Arrays.stream(hlFields).map(x -> 
-            Pattern.compile(x.replace("*",  ".*"))).collect(Collectors.toList());
+        this.distinctTasks = distinctTasks(tasks);
+        this.queryFields = queryFields(distinctTasks);
+        this.combinedQuery = combinedQuery(distinctTasks);
+        this.maxTagsLength = tasks.stream().mapToInt(x -> x.startTag.length() + x.endTag.length()).max().orElse(0);
+        this.fieldPlan = fieldPlan;
+        this.indexPool = indexPool;
     }
     
-    public Map<String, List<String>> highlightDoc(Document doc) {
+    /**
+     * Return the best fragments of each field rather than whole values.
+     * @param fragmenter chooses the fragments, or null to return whole values
+     */
+    public void setFragmenter(Fragmenter fragmenter) {
+        this.fragmenter = fragmenter;
+    }
+    
+    /**
+     * Limit the amount of text analysed (into the document index), so that very large documents can't blow up
+     * latency or the heap. Text beyond the limits is not highlighted.
+     * @param maxAnalyzedChars the maximum number of characters of each field to analyse
+     * @param maxAnalyzedCharsPerDoc the maximum number of characters of each document to analyse
+     */
+    public void setMaxAnalyzedChars(int maxAnalyzedChars, int maxAnalyzedCharsPerDoc) {
+        this.maxAnalyzedChars = maxAnalyzedChars;
+        this.maxAnalyzedCharsPerDoc = maxAnalyzedCharsPerDoc;
+    }
+    
+    /**
+     * Keep the analysed form of each field in the given cache, keyed on the document id, and replay it from there
+     * rather than analysing the field again. The cache must belong to the searcher the document ids come from.
+     */
+    public void setTokenCache(SolrCache<AnalyzedField.Key, AnalyzedField> tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+    
+    /**
+     * Record the time spent analysing and collecting spans, and the amount of text analysed, in the given metrics.
+     */
+    public void setMetrics(HighlightMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Charge the text analysed and the spans collected to the given budget, stopping when it runs out.
+     */
+    public void setBudget(HighlightBudget budget) {
+        this.budget = budget;
+    }
+    
+    /**
+     * Tasks whose queries share a leaf (a term, phrase and so on, which the rewriter flattens boolean queries into)
+     * get the same spans from it, which always merge in favour of the task with the lowest priority value, so each
+     * leaf only needs to be run for that task. Tasks left without any leaves needn't be run at all.
+     */
+    static List<HighlightingTask> distinctTasks(List<HighlightingTask> tasks) {
+        Map<Query, HighlightingTask> owners = new HashMap<>();
+        for (HighlightingTask task : tasks) {
+            for (Query leaf : QueryRewriter.INSTANCE.extractLeaves(task.query)) {
+                owners.merge(leaf, task, (x, y) -> x.priority <= y.priority ? x : y);
+            }
+        }
         
-        // build a single-field, single-document, memory index
-        MemoryIndex index = new MemoryIndex(true);
+        List<HighlightingTask> distinct = new ArrayList<>();
+        for (HighlightingTask task : tasks) {
+            List<Query> leaves = QueryRewriter.INSTANCE.extractLeaves(task.query);
+            List<Query> owned = leaves.stream().filter(leaf -> owners.get(leaf) == task).collect(Collectors.toList());
+            if (owned.size() == leaves.size() && owned.isEmpty() == false) {
+                if (distinct.contains(task) == false) {
+                    distinct.add(task);
+                }
+            }
+            else if (owned.isEmpty() == false) {
+                distinct.add(new HighlightingTask(task.priority, QueryRewriter.INSTANCE.disjunction(owned), task.startTag, task.endTag));
+            }
+        }
+        return distinct;
+    }
+    
+    /**
+     * @return one query running the leaves of all the tasks' (rewritten) queries, each tagged with its task, or null
+     * if any of the queries can't be split into span leaves.
+     */
+    static Query combinedQuery(List<HighlightingTask> tasks) {
+        List<Query> leaves = new ArrayList<>();
+        for (HighlightingTask task : tasks) {
+            for (Query leaf : QueryRewriter.INSTANCE.extractLeaves(task.query)) {
+                if (leaf instanceof SpanQuery == false) {
+                    return null;
+                }
+                leaves.add(new TaskSpanQuery((SpanQuery) leaf, task));
+            }
+        }
+        return leaves.isEmpty() ? null : QueryRewriter.INSTANCE.disjunction(leaves);
+    }
+    
+    /**
+     * @return the fields which the tasks' (rewritten) queries can match in, or null if they might match in any field.
+     */
+    static Set<String> queryFields(List<HighlightingTask> tasks) {
+        Set<String> fields = new HashSet<>();
+        for (HighlightingTask task : tasks) {
+            Set<String> taskFields = QueryRewriter.INSTANCE.extractFields(task.query);
+            if (taskFields == null) {
+                return null;
+            }
+            fields.addAll(taskFields);
+        }
+        return fields;
+    }
+    
+    /**
+     * Highlight a document by analysing its stored fields.
+     */
+    public Map<String, List<String>> highlightDoc(Document doc) {
+        return highlightDoc(null, -1, doc);
+    }
+    
+    /**
+     * Highlight a document from the given index. Fields which store term vectors with positions and offsets
+     * are read from those, rather than analysing the stored text again.
+     * @param reader the index containing the document, or null to analyse every field
+     * @param docId the document's id in the reader
+     * @param doc the document's stored fields
+     */
+    public Map<String, List<String>> highlightDoc(IndexReader reader, int docId, Document doc) {
+        return render(doc, collectOffsets(reader, docId, doc));
+    }
+    
+    /**
+     * @return true, iff the named field is one of the fields to highlight, and the queries can match in it.
+     */
+    public boolean isHighlightField(String name) {
+        return getHighlightField(name) != null;
+    }
+    
+    HighlightField getHighlightField(String name) {
+        if (queryFields != null && queryFields.contains(name) == false) {
+            // there's no point analysing a field that none of the queries can match in
+            return null;
+        }
+        return fieldPlan.get(schema, name);
+    }
+    
+    /**
+     * Collect the offsets of the spans matching each of the highlighting tasks, by building a single-document
+     * index from the document's highlight fields.
+     */
+    OffsetCollector collectOffsets(IndexReader reader, int docId, Document doc) {
+        // build a single-document memory index (reusing this thread's one if we can)
+        Timer.Context analysisTime = metrics.analysis.time();
+        MemoryIndex index = indexPool.acquire();
+        Fields termVectors = null;
+        Set<String> addedFields = new HashSet<>();
+        Map<String, AnalyzedField.Recorder> recorders = new HashMap<>();
+        Map<String, Integer> fieldChars = new HashMap<>();
+        int docChars = 0;
+        boolean truncated = false;
         for (IndexableField field : doc) {
-            if (hlFieldPatterns.stream().anyMatch(x -> x.matcher(field.name()).matches())) {
-                FieldType ft = schema.getFieldTypeByName(field.name());
-                Analyzer analyzer = ft.getIndexAnalyzer();
-                LOG.trace("field name={} value={}... analyzer={}", field.name(), field.stringValue().substring(0,  10), analyzer);
-                if (analyzer != null && field.stringValue() != null) {
-                    index.addField(field.name(), field.stringValue(), analyzer);
+            HighlightField hlField = getHighlightField(field.name());
+            String value = field.stringValue();
+            if (hlField == null || value == null || addedFields.contains(field.name())) {
+                // not highlighted, or all the values were already added from the term vector or token cache
+                continue;
+            }
+            if (budget.isExhausted()) {
+                truncated = true;
+                break;
+            }
+            
+            // how much more of this field can we analyse?
+            int used = fieldChars.getOrDefault(field.name(), 0);
+            int limit = Math.min(maxAnalyzedChars - used, maxAnalyzedCharsPerDoc - docChars);
+            if (limit <= 0) {
+                truncated = true;
+                continue;
+            }
+            
+            if (reader != null && hlField.termVectors) {
+                try {
+                    if (termVectors == null) {
+                        termVectors = reader.getTermVectors(docId);
+                    }
+                    int fieldLength = fieldLength(doc, field.name());
+                    TokenStream stream = TokenSources.getTermVectorTokenStreamOrNull(field.name(), termVectors,
+                            fieldLength > limit ? limit - 1 : -1);
+                    if (stream != null) {
+                        LOG.trace("field name={} from term vectors", field.name());
+                        if (fieldLength > limit) {
+                            stream = new LimitEndOffsetFilter(stream, limit);
+                        }
+                        index.addField(field.name(), stream);
+                        addedFields.add(field.name());
+                        // charged as if the text had been analysed, so the limits apply whichever way it is read
+                        int read = Math.min(fieldLength, limit);
+                        fieldChars.put(field.name(), used + read);
+                        docChars += read;
+                        metrics.analyzedChars.inc(read);
+                        budget.addChars(read);
+                        truncated |= fieldLength > limit;
+                        continue;
+                    }
                 }
+                catch (IOException e) {
+                    LOG.error("error reading term vectors, analysing instead", e);
+                }
+            }
+            
+            Analyzer analyzer = hlField.analyzer;
+            if (analyzer == null) {
+                continue;
+            }
+            if (tokenCache != null && docId >= 0 && recorders.containsKey(field.name()) == false) {
+                // the first value of the field: replay all of them if they've been analysed before
+                AnalyzedField cached = tokenCache.get(new AnalyzedField.Key(docId, field.name()));
+                if (cached != null && cached.length() <= limit) {
+                    LOG.trace("field name={} from token cache", field.name());
+                    for (int i = 0; i < cached.size(); i++) {
+                        index.addField(field.name(), cached.replay(i), analyzer.getPositionIncrementGap(field.name()),
+                                analyzer.getOffsetGap(field.name()));
+                    }
+                    addedFields.add(field.name());
+                    // charged as if the text had been analysed again
+                    fieldChars.put(field.name(), used + cached.length());
+                    docChars += cached.length();
+                    metrics.analyzedChars.inc(cached.length());
+                    budget.addChars(cached.length());
+                    continue;
+                }
+                recorders.put(field.name(), new AnalyzedField.Recorder());
+            }
+            
+            LOG.trace("field name={} analyzer={}", field.name(), analyzer);
+            TokenStream stream = analyzer.tokenStream(field.name(), value);
+            AnalyzedField.Recorder recorder = recorders.get(field.name());
+            if (recorder != null) {
+                stream = recorder.record(stream, value.length());
             }
-        }        
+            if (value.length() > limit) {
+                // stop analysing (and tokenizing) at the limit; the rest of the text will not be highlighted
+                stream = new LimitEndOffsetFilter(stream, limit);
+                truncated = true;
+                // and don't cache a partly analysed field
+                recorders.put(field.name(), null);
+            }
+            index.addField(field.name(), stream, analyzer.getPositionIncrementGap(field.name()), analyzer.getOffsetGap(field.name()));
+            int analysed = Math.min(value.length(), limit);
+            fieldChars.put(field.name(), used + analysed);
+            docChars += analysed;
+            metrics.analyzedChars.inc(analysed);
+            budget.addChars(analysed);
+        }
+        
+        for (Map.Entry<String, AnalyzedField.Recorder> entry : recorders.entrySet()) {
+            AnalyzedField analyzed = entry.getValue() == null ? null : entry.getValue().build(doc.getValues(entry.getKey()).length);
+            if (analyzed != null) {
+                tokenCache.put(new AnalyzedField.Key(docId, entry.getKey()), analyzed);
+            }
+        }
         index.freeze();
+        analysisTime.stop();
 
         IndexSearcher searcher = index.createSearcher();
         searcher.setQueryCache(null);
         
-        // collect the matching spans for each of the highlighting tasks (in the same sorted collector)
-        OffsetCollector collector = new OffsetCollector();
-        for (HighlightingTask task : tasks) {
-            LOG.debug("collecting spans for {}", task);
-            collector.setTask(task);
+        // collect the matching spans for all the highlighting tasks in one pass over the document's only segment,
+        // tagging each span with the task that produced it
+        Timer.Context collectionTime = metrics.collection.time();
+        LeafReaderContext leaf = searcher.getIndexReader().leaves().get(0);
+        OffsetCollector collector = COLLECTORS.get();
+        collector.clear();
+        collector.setTruncated(truncated);
+        if (combinedQuery != null) {
             try {
-                searcher.search(task.query, new SimpleCollector() {    
-                    Scorer scorer;
-    
-                    @Override
-                    public boolean needsScores() {
-                        return true;
-                    }
-        
-                    @Override
-                    public void setScorer(Scorer scorer) throws IOException {
-                        this.scorer = scorer;
-                    }
-        
-                    @Override
-                    public void collect(int doc) throws IOException {
-                        SpanExtractor.collect(scorer, collector);
-                    }
-                });
+                Scorer scorer = searcher.createNormalizedWeight(combinedQuery, true).scorer(leaf);
+                if (scorer != null && scorer.iterator().nextDoc() != DocIdSetIterator.NO_MORE_DOCS
+                        && SpanExtractor.collect(scorer, collector, budget) == false) {
+                    collector.setTruncated(true);
+                }
             }
             catch (IOException e) {
                 LOG.error("error collecting spans", e);
             }
+            collectionTime.stop();
+            return collector;
         }
         
-        // Now generate the highlighted text to return.
-        Map<String, List<String>> results = new HashMap<>();
-        
-        for(Map.Entry<String, SortedSet<Offset>> entry : collector.offsets.entrySet()) {
-            String field = entry.getKey();
-            List<Offset> offsets = mergeOffsets(entry.getValue());
-            List<String> fieldResults = new ArrayList<>(); 
-            int fieldOffsetStart = 0;
-            
-            for (String fieldValue : doc.getValues(field)) {
-                final int fieldOffsetEnd = fieldOffsetStart + fieldValue.length();
-                        
-                // find which, if any, offsets apply to this value (OPTIMIZE whole list each time is not efficient)
-                final int fieldOffsetStart2 = fieldOffsetStart;     // for lambda
-                List<Offset> currentOffsets = offsets.stream().filter(x -> 
-                    x.start < fieldOffsetEnd && x.end >= fieldOffsetStart2).collect(Collectors.toList());
-                
-                if (currentOffsets.size() > 0) {
-                    StringBuilder builder = new StringBuilder();
-                    int hlOffsetEnd = 0;
-                    for (Offset off : currentOffsets) {
-                        // adjust offsets for current value. Allow offsets to overlap incompletely (FIXME is this necessary?)
-                        int offStart = Math.max(0, off.start - fieldOffsetStart);
-                        int offEnd = Math.min(fieldValue.length(), off.end - fieldOffsetStart);
-
-                        builder.append(fieldValue, hlOffsetEnd, offStart);
-                        builder.append(off.task.startTag);
-                        builder.append(fieldValue, offStart, offEnd);
-                        builder.append(off.task.endTag);
-                        
-                        hlOffsetEnd = offEnd;
+        // some of the queries couldn't be split into span leaves, so run each task on its own
+        for (HighlightingTask task : distinctTasks) {
+            if (collector.fields().isEmpty() == false && budget.isExhausted()) {
+                // stop once we have something to show
+                collector.setTruncated(true);
+                break;
+            }
+            LOG.debug("collecting spans for {}", task);
+            try {
+                Weight weight = searcher.createNormalizedWeight(task.query, true);
+                Scorer scorer = weight.scorer(leaf);
+                if (scorer != null && scorer.iterator().nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    collector.setTask(task);
+                    if (SpanExtractor.collect(scorer, collector, budget) == false) {
+                        collector.setTruncated(true);
                     }
-                    builder.append(fieldValue, hlOffsetEnd, fieldValue.length());
-                    fieldResults.add(builder.toString());
                 }
-                
-                // the next field offset begins one after the current end
-                fieldOffsetStart = fieldOffsetEnd + 1;
             }
-            results.put(field, fieldResults);
+            catch (IOException e) {
+                LOG.error("error collecting spans", e);
+            }
         }
-
-        return results;
+        collectionTime.stop();
+        return collector;
     }
     
     /**
-     * Merge a collection of offsets (which may overlap.)
-     * @param offsets The offsets to merge, which are assumed to be sorted by the start offset.
-     * @return The merged offsets.
+     * @return the length of all the values of a field, including the gaps between them.
      */
-    protected List<Offset> mergeOffsets(Collection<Offset> offsets) {
-        List<Offset> ret = new ArrayList<>(offsets.size());
-        for (Offset off : offsets) {
-            if (ret.isEmpty()) {
-                ret.add(off);
-            }
-            else {
-                int end = ret.size() - 1;
-                if (ret.get(end).overlaps(off)) {
-                    ret.set(end, ret.get(end).merge(off));
-                }
-                else {
-                    ret.add(off);
-                }
-            }
+    private static int fieldLength(Document doc, String name) {
+        int length = -1;
+        for (String value : doc.getValues(name)) {
+            length += value.length() + 1;
         }
-        return ret;
+        return Math.max(0, length);
     }
-
+    
     /**
-     * Actually, a pair of offsets, which indicate where the "pre" and "post" highlighting tags should be inserted.
-     * Also includes the highlighting task which generated this offset, so we know the priorities for merging.  
+     * Generate the highlighted text of the document's highlight fields, from the collected offsets.
      */
-    private static class Offset implements Comparable<Offset> {
-        public final int start;
-        public final int end;
-        public final HighlightingTask task;
+    Map<String, List<String>> render(Document doc, OffsetCollector collector) {
+        Map<String, List<String>> results = new HashMap<>();
+        StringBuilder builder = BUILDERS.get();
         
-        public Offset(int start, int end, HighlightingTask task) {
-            this.start = start;
-            this.end = end;
-            this.task = task;
+        for (String field : collector.fields()) {
+            if (isHighlightField(field) == false) {
+                // offsets collected from the main index may be for fields we were not asked to highlight
+                continue;
+            }
+            FieldOffsets offsets = collector.get(field);
+            offsets.sortAndMerge();
+            List<String> fieldResults; 
+            if (fragmenter != null) {
+                Fragmenter.FieldFragments fragments = fragmenter.start(offsets, collector);
+                forEachMatchingValue(doc, field, offsets, (index, value, valueStart, first, last) ->
+                        fragments.addValue(value, valueStart, first, last));
+                fieldResults = fragments.finish(builder);
+            }
+            else {
+                List<String> values = new ArrayList<>();
+                forEachMatchingValue(doc, field, offsets, (index, value, valueStart, first, last) -> {
+                    builder.setLength(0);
+                    builder.ensureCapacity(value.length() + (last - first) * maxTagsLength);
+                    appendHighlighted(builder, value, valueStart, 0, value.length(), offsets, first, last, collector);
+                    values.add(builder.toString());
+                });
+                fieldResults = values;
+            }
+            if (fieldResults.isEmpty() == false) {
+                results.put(field, fieldResults);
+            }
         }
         
-        @Override
-        public int compareTo(Offset that) {
-            return Integer.compare(this.start, that.start);
+        if (builder.capacity() > MAX_RETAINED_CHARS) {
+            BUILDERS.remove();
         }
-        
-        @Override
-        public String toString() {
-            return "Offset:"+ start + "-" + end;
+        return results;
+    }
+    
+    /**
+     * Generate the positions of the highlights in the document's highlight fields, without copying any text.
+     * Each field has a flat list of (value index, start, end, task priority) entries, with the start and end
+     * offsets relative to the value.
+     */
+    Map<String, List<Integer>> renderOffsets(Document doc, OffsetCollector collector) {
+        Map<String, List<Integer>> results = new HashMap<>();
+        for (String field : collector.fields()) {
+            if (isHighlightField(field) == false) {
+                continue;
+            }
+            FieldOffsets offsets = collector.get(field);
+            offsets.sortAndMerge();
+            List<Integer> fieldResults = new ArrayList<>(offsets.size * 4);
+            forEachMatchingValue(doc, field, offsets, (index, value, valueStart, first, last) -> {
+                for (int i = first; i < last; i++) {
+                    int start = Math.max(0, offsets.starts[i] - valueStart);
+                    int end = Math.min(value.length(), offsets.ends[i] - valueStart);
+                    if (start < end) {
+                        fieldResults.add(index);
+                        fieldResults.add(start);
+                        fieldResults.add(end);
+                        fieldResults.add(collector.task(offsets.taskIds[i]).priority);
+                    }
+                }
+            });
+            if (fieldResults.isEmpty() == false) {
+                results.put(field, fieldResults);
+            }
         }
-        
-        /**
-         * @return true, iff the supplied offset overlaps with this one.
-         */
-        public boolean overlaps(Offset that) {
-            return this.end >= that.start && this.start <= that.end;
+        return results;
+    }
+    
+    /**
+     * Sweep forward through the values of a field and its (sorted and merged) offsets together, calling the
+     * visitor for each value which has offsets within it. The merged offsets don't overlap, so their ends are
+     * sorted as well as their starts.
+     */
+    private static void forEachMatchingValue(Document doc, String field, FieldOffsets offsets, MatchingValueVisitor visitor) {
+        int first = 0;
+        int fieldOffsetStart = 0;
+        String[] values = doc.getValues(field);
+        for (int index = 0; index < values.length; index++) {
+            String fieldValue = values[index];
+            int fieldOffsetEnd = fieldOffsetStart + fieldValue.length();
+            
+            // skip offsets which end before this value, then find those which start within it
+            while (first < offsets.size && offsets.ends[first] <= fieldOffsetStart) {
+                first++;
+            }
+            if (first == offsets.size) {
+                break;
+            }
+            int last = first;
+            while (last < offsets.size && offsets.starts[last] < fieldOffsetEnd) {
+                last++;
+            }
+            if (last > first) {
+                visitor.visit(index, fieldValue, fieldOffsetStart, first, last);
+            }
+            
+            // the next field offset begins one after the current end
+            fieldOffsetStart = fieldOffsetEnd + 1;
         }
-        
+    }
+    
+    /**
+     * Receives a value of a field which has offsets within it.
+     */
+    @FunctionalInterface
+    private interface MatchingValueVisitor {
         /**
-         * @return a merged offset of this and the overlapping one
+         * @param index the index of the value within the field
+         * @param valueStart the offset of the start of the value within the field
+         * @param first the first offset which may apply to the value
+         * @param last one after the last offset which starts within the value
          */
-        public Offset merge(Offset that) {
-            HighlightingTask priorityTask = (this.task.priority < that.task.priority) ? this.task : that.task;
-            return new Offset(Math.min(this.start, that.start), Math.max(this.end, that.end), priorityTask);
+        void visit(int index, String value, int valueStart, int first, int last);
+    }
+    
+    /**
+     * Append the text of a value between from and to (relative to the value), with the given range of offsets
+     * highlighted. Offsets may extend beyond the text, in which case only the part within it is highlighted.
+     * @param valueStart the offset of the start of the value within the field
+     */
+    static void appendHighlighted(StringBuilder builder, String value, int valueStart, int from, int to,
+                                  FieldOffsets offsets, int first, int last, OffsetCollector collector) {
+        int hlOffsetEnd = from;
+        for (int i = first; i < last; i++) {
+            HighlightingTask task = collector.task(offsets.taskIds[i]);
+            int offStart = Math.max(from, offsets.starts[i] - valueStart);
+            int offEnd = Math.min(to, offsets.ends[i] - valueStart);
+            if (offStart >= offEnd) {
+                continue;
+            }
+            
+            builder.append(value, hlOffsetEnd, offStart);
+            builder.append(task.startTag);
+            builder.append(value, offStart, offEnd);
+            builder.append(task.endTag);
+            
+            hlOffsetEnd = offEnd;
         }
+        builder.append(value, hlOffsetEnd, to);
     }
 
     /**
-     * Convenience class for collecting offsets from a span query.
+     * Passes only the tokens which end within the limit, and stops at the first token which starts beyond it, so no
+     * highlight extends past the analysed text. The positions of dropped tokens are kept, so phrases can't match
+     * across them.
      */
-    private static class OffsetCollector implements SpanCollector {
-        Map<String, SortedSet<Offset>> offsets = new HashMap<>(); 
-        private HighlightingTask currentTask;
-        
-        public void setTask(HighlightingTask task) {
-            currentTask = task;
+    static final class LimitEndOffsetFilter extends TokenFilter {
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        private final int limit;
+
+        LimitEndOffsetFilter(TokenStream in, int limit) {
+            super(in);
+            this.limit = limit;
         }
-        
+
         @Override
-        public void collectLeaf(PostingsEnum postingsEnum, int i, Term term) throws IOException {
-            String field =  term.field();
-            if (offsets.containsKey(field) == false) {
-                offsets.put(field, new TreeSet<>());
+        public boolean incrementToken() throws IOException {
+            int skippedPositions = 0;
+            while (input.incrementToken()) {
+                if (offsetAtt.startOffset() >= limit) {
+                    return false;
+                }
+                if (offsetAtt.endOffset() <= limit) {
+                    posIncAtt.setPositionIncrement(posIncAtt.getPositionIncrement() + skippedPositions);
+                    return true;
+                }
+                skippedPositions += posIncAtt.getPositionIncrement();
             }
-            offsets.get(field).add(new Offset(postingsEnum.startOffset(), postingsEnum.endOffset(), currentTask));
+            return false;
         }
-        
-        @Override
-        public void reset() { }        
-    }    
+    }
 }
@@ -0,0 +1,141 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+
+/**
+ * Loads the stored fields of the documents to highlight on a separate thread, a bounded number of documents ahead of
+ * the thread highlighting them, so that decompressing (and on a cold cache, reading) the next documents overlaps with
+ * the CPU-bound analysis of the current one. Documents are loaded in the order they will be taken.
+ */
+public class DocumentPrefetcher implements Closeable {
+
+    // how often a loader blocked on a full queue checks whether the prefetcher has been closed
+    private static final long OFFER_WAIT_MS = 10;
+
+    private final BlockingQueue<Loaded> queue;
+    private final Future<?> future;
+    private volatile boolean closed;
+
+    /**
+     * Start loading documents.
+     * @param indexes the positions of the documents to load, in the order they will be taken
+     * @param capacity the maximum number of documents loaded but not yet taken
+     * @throws java.util.concurrent.RejectedExecutionException if the executor has no thread free to load them
+     */
+    public DocumentPrefetcher(ExecutorService executor, int[] indexes, int capacity, Loader loader) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.future = executor.submit(() -> {
+            for (int index : indexes) {
+                if (closed) {
+                    return;
+                }
+                Loaded loaded;
+                try {
+                    loaded = new Loaded(index, loader.load(index), null);
+                }
+                catch (Throwable e) {
+                    // hand any failure to the taker, so it doesn't wait forever for a document that won't come
+                    loaded = new Loaded(index, null, e);
+                }
+                try {
+                    while (queue.offer(loaded, OFFER_WAIT_MS, TimeUnit.MILLISECONDS) == false) {
+                        if (closed) {
+                            return;
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (loaded.error != null) {
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Take a loaded document, waiting for it if need be. Documents must be taken in the order they are loaded,
+     * but any may be skipped.
+     * @param index the position of the document
+     */
+    public Document take(int index) throws IOException {
+        try {
+            while (true) {
+                Loaded loaded = queue.take();
+                if (loaded.index != index && loaded.error == null) {
+                    // skipped by the caller
+                    continue;
+                }
+                if (loaded.error instanceof IOException) {
+                    throw (IOException) loaded.error;
+                }
+                if (loaded.error instanceof RuntimeException) {
+                    throw (RuntimeException) loaded.error;
+                }
+                if (loaded.error instanceof Error) {
+                    throw (Error) loaded.error;
+                }
+                if (loaded.error != null) {
+                    throw new IllegalStateException(loaded.error);
+                }
+                return loaded.document;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a document", e);
+        }
+    }
+
+    /**
+     * Stop loading documents, and wait for any document being loaded, so that the searcher is not used after the
+     * request finishes. The loading thread is not interrupted, as that would close the index channels it reads from.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        queue.clear();
+        try {
+            future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            // load failures are reported by take()
+        }
+    }
+
+    /**
+     * Loads the stored fields of a document.
+     */
+    public interface Loader {
+        /**
+         * @param index the position of the document
+         */
+        Document load(int index) throws IOException;
+    }
+
+    private static class Loaded {
+        final int index;
+        final Document document;
+        final Throwable error;
+
+        Loaded(int index, Document document, Throwable error) {
+            this.index = index;
+            this.document = document;
+            this.error = error;
+        }
+    }
+}
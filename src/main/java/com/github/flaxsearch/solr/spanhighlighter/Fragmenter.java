@@ -0,0 +1,195 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import com.github.flaxsearch.solr.spanhighlighter.OffsetCollector.FieldOffsets;
+
+/**
+ * Cuts highlighted field values down to the best few fragments (snippets) around the matches, rather than
+ * returning every matching value in full. Candidate passages of about fragsize characters are built around the
+ * collected offsets, with their ends moved to sentence or word boundaries, scored by the number of matches they
+ * contain, and the best are kept in a bounded heap. The chosen fragments are returned in document order.
+ */
+public class Fragmenter {
+
+    public static final String BOUNDARY_SENTENCE = "SENTENCE";
+    public static final String BOUNDARY_WORD = "WORD";
+    public static final String BOUNDARY_NONE = "NONE";
+
+    private final int fragsize;
+    private final int snippets;
+    private final String boundaryType;
+
+    /**
+     * @param fragsize the approximate size of each fragment, in characters
+     * @param snippets the maximum number of fragments to return for each field
+     * @param boundaryType where fragments may start and end: SENTENCE, WORD or NONE (anywhere)
+     */
+    public Fragmenter(int fragsize, int snippets, String boundaryType) {
+        this.fragsize = fragsize;
+        this.snippets = Math.max(1, snippets);
+        this.boundaryType = boundaryType.toUpperCase(Locale.ROOT);
+        if (this.boundaryType.equals(BOUNDARY_SENTENCE) == false && this.boundaryType.equals(BOUNDARY_WORD) == false
+                && this.boundaryType.equals(BOUNDARY_NONE) == false) {
+            throw new IllegalArgumentException("unknown boundary type " + boundaryType);
+        }
+    }
+
+    /**
+     * Start choosing the fragments of a field.
+     */
+    FieldFragments start(FieldOffsets offsets, OffsetCollector collector) {
+        return new FieldFragments(offsets, collector);
+    }
+
+    /**
+     * A candidate fragment: the text between start and end of a value, containing the offsets first..last-1.
+     */
+    private static class Passage {
+        final String value;
+        final int valueStart;
+        final int start;
+        final int end;
+        final int first;
+        final int last;
+        final int order;
+
+        Passage(String value, int valueStart, int start, int end, int first, int last, int order) {
+            this.value = value;
+            this.valueStart = valueStart;
+            this.start = start;
+            this.end = end;
+            this.first = first;
+            this.last = last;
+            this.order = order;
+        }
+
+        int score() {
+            return last - first;
+        }
+    }
+
+    // the worst passage (lowest score, and then the latest) is at the head of the heap
+    private static final Comparator<Passage> WORST_FIRST =
+            Comparator.comparingInt(Passage::score).thenComparing(Comparator.comparingInt((Passage x) -> x.order).reversed());
+
+    /**
+     * The fragments of a single field, chosen from its values one at a time.
+     */
+    class FieldFragments {
+        private final FieldOffsets offsets;
+        private final OffsetCollector collector;
+        private final PriorityQueue<Passage> best = new PriorityQueue<>(snippets + 1, WORST_FIRST);
+        private final BreakIterator boundaries;
+        private final BreakIterator words;
+        private int order;
+
+        private FieldFragments(FieldOffsets offsets, OffsetCollector collector) {
+            this.offsets = offsets;
+            this.collector = collector;
+            this.words = boundaryType.equals(BOUNDARY_NONE) ? null : BreakIterator.getWordInstance(Locale.ROOT);
+            this.boundaries = boundaryType.equals(BOUNDARY_SENTENCE) ? BreakIterator.getSentenceInstance(Locale.ROOT) : words;
+        }
+
+        /**
+         * Add the candidate passages of a value.
+         * @param valueStart the offset of the start of the value within the field
+         * @param first the first offset which may apply to the value
+         * @param last one after the last offset which starts within the value
+         */
+        void addValue(String value, int valueStart, int first, int last) {
+            if (boundaries != null) {
+                boundaries.setText(value);
+                if (words != boundaries) {
+                    words.setText(value);
+                }
+            }
+
+            int i = first;
+            int previousEnd = 0;
+            while (i < last) {
+                int matchStart = Math.max(0, offsets.starts[i] - valueStart);
+                int matchEnd = Math.min(value.length(), offsets.ends[i] - valueStart);
+                int slack = Math.max(0, fragsize - (matchEnd - matchStart)) / 2;
+
+                int start = snapStart(matchStart, Math.max(previousEnd, matchStart - slack));
+                int end = snapEnd(Math.min(value.length(), start + fragsize), matchEnd);
+
+                // don't start or end the fragment with whitespace
+                while (start < matchStart && Character.isWhitespace(value.charAt(start))) {
+                    start++;
+                }
+                while (end > matchEnd && Character.isWhitespace(value.charAt(end - 1))) {
+                    end--;
+                }
+
+                // the passage takes every following match which starts before its end
+                int j = i + 1;
+                while (j < last && offsets.starts[j] - valueStart < end) {
+                    j++;
+                }
+                best.add(new Passage(value, valueStart, start, end, i, j, order++));
+                if (best.size() > snippets) {
+                    best.poll();
+                }
+                i = j;
+                previousEnd = end;
+            }
+        }
+
+        /**
+         * @return the chosen fragments, highlighted, in document order.
+         */
+        List<String> finish(StringBuilder builder) {
+            List<Passage> passages = new ArrayList<>(best);
+            passages.sort(Comparator.comparingInt(x -> x.order));
+            List<String> fragments = new ArrayList<>(passages.size());
+            for (Passage passage : passages) {
+                builder.setLength(0);
+                DocumentHighlighter.appendHighlighted(builder, passage.value, passage.valueStart, passage.start, passage.end,
+                        offsets, passage.first, passage.last, collector);
+                fragments.add(builder.toString());
+            }
+            return fragments;
+        }
+
+        /**
+         * @return the start of the sentence containing pos if that is no earlier than min, or else the first word
+         * boundary at or after min.
+         */
+        private int snapStart(int pos, int min) {
+            if (words == null) {
+                return min;
+            }
+            if (boundaries != words) {
+                int b = boundaries.isBoundary(pos) ? pos : boundaries.preceding(pos);
+                if (b != BreakIterator.DONE && b >= min) {
+                    return b;
+                }
+            }
+            int b = words.isBoundary(min) ? min : words.following(min);
+            return (b == BreakIterator.DONE || b > pos) ? min : b;
+        }
+
+        /**
+         * @return the last boundary at or before target, or else the last word boundary at or before target, but
+         * never before min.
+         */
+        private int snapEnd(int target, int min) {
+            if (target <= min || words == null) {
+                return Math.max(target, min);
+            }
+            int b = boundaries.isBoundary(target) ? target : boundaries.preceding(target);
+            if (b != BreakIterator.DONE && b >= min) {
+                return b;
+            }
+            b = words.isBoundary(target) ? target : words.preceding(target);
+            return (b == BreakIterator.DONE || b < min) ? min : b;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on the time and work one highlighting request may use: a deadline, and caps on the total number of
+ * characters analysed and offsets collected over all its documents. The highlighting code checks the budget between
+ * documents, and every so often while collecting spans, and stops early once it is exhausted, so a request returns
+ * whatever it has highlighted by then. A budget may be shared by the threads highlighting a request.
+ */
+public class HighlightBudget {
+
+    /**
+     * A budget which is never exhausted.
+     */
+    public static final HighlightBudget UNLIMITED = new HighlightBudget(-1, -1, -1);
+
+    private final long deadline;
+    private final long maxChars;
+    private final long maxOffsets;
+    private final AtomicLong chars = new AtomicLong();
+    private final AtomicLong offsets = new AtomicLong();
+    private volatile boolean exhausted;
+
+    /**
+     * @param timeAllowed the time the request may take, in milliseconds from now
+     * @param maxChars the number of characters the request may analyse
+     * @param maxOffsets the number of offsets the request may collect
+     * Any of the limits may be zero or less, for no limit.
+     */
+    public HighlightBudget(long timeAllowed, long maxChars, long maxOffsets) {
+        this.deadline = timeAllowed > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeAllowed) : Long.MAX_VALUE;
+        this.maxChars = maxChars > 0 ? maxChars : Long.MAX_VALUE;
+        this.maxOffsets = maxOffsets > 0 ? maxOffsets : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return true, iff there is a time or work limit on this budget.
+     */
+    public boolean isLimited() {
+        return deadline != Long.MAX_VALUE || maxChars != Long.MAX_VALUE || maxOffsets != Long.MAX_VALUE;
+    }
+
+    public void addChars(long count) {
+        if (maxChars != Long.MAX_VALUE && chars.addAndGet(count) > maxChars) {
+            exhausted = true;
+        }
+    }
+
+    public void addOffsets(long count) {
+        if (maxOffsets != Long.MAX_VALUE && offsets.addAndGet(count) > maxOffsets) {
+            exhausted = true;
+        }
+    }
+
+    /**
+     * @return true, iff the deadline has passed or too much work has been done, so highlighting should stop.
+     */
+    public boolean isExhausted() {
+        if (exhausted == false && deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+            exhausted = true;
+        }
+        return exhausted;
+    }
+
+    /**
+     * @return true, iff highlighting was stopped (or should have been) because the budget ran out.
+     */
+    public boolean wasExhausted() {
+        return exhausted;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HighlightBudget(chars=%d/%d, offsets=%d/%d, exhausted=%s)",
+                chars.get(), maxChars, offsets.get(), maxOffsets, exhausted);
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * The fields to highlight, compiled from the hl.fl patterns against a schema. Each field name is matched against
+ * the patterns and looked up in the schema only once, and the outcome (including the field's analyzer and whether
+ * it stores term vectors with positions and offsets) is remembered, up to a limit, so checking a stored field of a
+ * document is a single map lookup. Plans hold no per-request state, so they can be cached and shared for as long as
+ * the schema lives. They hold no reference to the schema either, so a cache weakly keyed on the schema can let it go
+ * when it is replaced; the schema is passed in to resolve names not seen before.
+ */
+public class HighlightFieldPlan {
+
+    // marks names which do not match the patterns (ConcurrentHashMap can't hold nulls)
+    private static final HighlightField NOT_HIGHLIGHTED = new HighlightField(null, null, false);
+
+    // the most field names a plan remembers. An index with many dynamic fields could otherwise grow the map without
+    // limit; names seen after it is full are resolved each time instead.
+    static final int MAX_RESOLVED_FIELDS = 4096;
+
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final ConcurrentHashMap<String, HighlightField> resolved = new ConcurrentHashMap<>();
+
+    // every field which may be highlighted, if hl.fl names them all without wildcards and none of them can have
+    // more than one value; otherwise null
+    private Set<String> singleValuedFields = new HashSet<>();
+
+    /**
+     * Compile the hl.fl parameter, a list of field names delimited by commas or spaces.
+     */
+    public static HighlightFieldPlan compile(IndexSchema schema, String hlFl) {
+        return compile(schema, hlFl.split("[\\s\\,]"));
+    }
+
+    /**
+     * Compile the hl.fl field names (which may contain * wildcards) against the schema.
+     */
+    public static HighlightFieldPlan compile(IndexSchema schema, String[] hlFields) {
+        HighlightFieldPlan plan = new HighlightFieldPlan();
+        for (String hlField : hlFields) {
+            if (hlField.isEmpty() == false) {
+                plan.patterns.add(Pattern.compile(hlField.replace("*",  ".*")));
+            }
+        }
+
+        // resolve the fields we know about now; dynamic fields are resolved as they are first seen
+        for (String hlField : hlFields) {
+            if (hlField.isEmpty() == false && hlField.contains("*") == false) {
+                plan.get(schema, hlField);
+            }
+        }
+
+        // if the fields are all named, and single-valued, a document has no more to load once it has had each one
+        for (String hlField : hlFields) {
+            if (hlField.isEmpty() || plan.singleValuedFields == null) {
+                continue;
+            }
+            SchemaField sf = hlField.contains("*") ? null : schema.getFieldOrNull(hlField);
+            if (hlField.contains("*") || (sf != null && sf.multiValued())) {
+                plan.singleValuedFields = null;
+            }
+            else if (sf != null) {
+                plan.singleValuedFields.add(hlField);
+            }
+        }
+        if (plan.singleValuedFields != null) {
+            plan.singleValuedFields = Collections.unmodifiableSet(plan.singleValuedFields);
+        }
+        return plan;
+    }
+
+    private HighlightFieldPlan() {}
+
+    /**
+     * @param schema the schema the plan was compiled against
+     * @return the field to highlight with the given name, or null if it is not to be highlighted.
+     */
+    public HighlightField get(IndexSchema schema, String name) {
+        HighlightField field = resolved.get(name);
+        if (field == null) {
+            field = resolved.size() < MAX_RESOLVED_FIELDS ? resolved.computeIfAbsent(name, x -> resolve(schema, x))
+                    : resolve(schema, name);
+        }
+        return field == NOT_HIGHLIGHTED ? null : field;
+    }
+
+    /**
+     * @return all the fields which may be highlighted, if there are a known number of them and each can have only
+     * one value, so that a document has none left to load once it has had each of them; or null otherwise.
+     */
+    public Set<String> getSingleValuedFields() {
+        return singleValuedFields;
+    }
+
+    private HighlightField resolve(IndexSchema schema, String name) {
+        if (patterns.stream().noneMatch(x -> x.matcher(name).matches())) {
+            return NOT_HIGHLIGHTED;
+        }
+        SchemaField sf = schema.getFieldOrNull(name);
+        if (sf == null) {
+            return NOT_HIGHLIGHTED;
+        }
+        FieldType ft = sf.getType();
+        return new HighlightField(name, ft == null ? null : ft.getIndexAnalyzer(),
+                sf.storeTermPositions() && sf.storeTermOffsets());
+    }
+
+    /**
+     * A field to highlight, as resolved against the schema.
+     */
+    public static class HighlightField {
+        public final String name;
+
+        // the analyzer used to index the field, or null if the field can't be analysed
+        public final Analyzer analyzer;
+
+        // true, iff the field stores term vectors with positions and offsets
+        public final boolean termVectors;
+
+        HighlightField(String name, Analyzer analyzer, boolean termVectors) {
+            this.name = name;
+            this.analyzer = analyzer;
+            this.termVectors = termVectors;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("HighlightField(%s, analyzer=%s, termVectors=%s)", name, analyzer, termVectors);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.metrics.SolrMetricManager;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+
+/**
+ * Timers for each stage of highlighting, and counters of the work done, as reported under the highlighter's
+ * scope in /admin/metrics and JMX. Until the highlighter is registered with Solr's metrics, they are kept but not
+ * reported, so the highlighting code never needs to check whether there are metrics.
+ */
+public class HighlightMetrics {
+
+    /**
+     * Metrics shared by all highlighters which aren't registered, and not reported anywhere.
+     */
+    public static final HighlightMetrics UNREPORTED = new HighlightMetrics();
+
+    // a whole doHighlighting call
+    final Timer requests;
+
+    // loading a document's stored fields
+    final Timer loading;
+
+    // building a document's index, from its stored fields, term vectors or cached tokens
+    final Timer analysis;
+
+    // collecting the spans of all the tasks from a document's index, or of a page from the main index's postings
+    final Timer collection;
+
+    // generating the highlighted text (or offsets) of a document
+    final Timer rendering;
+
+    // documents returned with highlights, including those from the result cache but not those left out when the
+    // budget ran out
+    final Counter documents;
+    final Counter analyzedChars;
+    final Counter offsets;
+
+    // queries, and clauses of boolean and dismax queries, which the QueryRewriter didn't know how to rewrite,
+    // counted for every request that highlights with them, whether or not the rewrite was cached
+    final Counter rewriteFallbacks;
+
+    // hl.q.N queries which could not be parsed
+    final Counter parseErrors;
+
+    // multi-term queries whose expansion in a document was cut short at the highlighter's maxExpansions
+    final Counter expansionLimits;
+
+    /**
+     * Metrics which are not reported anywhere.
+     */
+    public HighlightMetrics() {
+        requests = new Timer();
+        loading = new Timer();
+        analysis = new Timer();
+        collection = new Timer();
+        rendering = new Timer();
+        documents = new Counter();
+        analyzedChars = new Counter();
+        offsets = new Counter();
+        rewriteFallbacks = new Counter();
+        parseErrors = new Counter();
+        expansionLimits = new Counter();
+    }
+
+    /**
+     * Metrics registered for the given highlighter.
+     */
+    public HighlightMetrics(SolrMetricManager manager, String registry, SolrInfoBean info, String scope) {
+        String category = info.getCategory().toString();
+        requests = manager.timer(info, registry, "requestTimes", category, scope);
+        loading = manager.timer(info, registry, "loadTimes", category, scope);
+        analysis = manager.timer(info, registry, "analysisTimes", category, scope);
+        collection = manager.timer(info, registry, "collectionTimes", category, scope);
+        rendering = manager.timer(info, registry, "renderTimes", category, scope);
+        documents = manager.counter(info, registry, "documents", category, scope);
+        analyzedChars = manager.counter(info, registry, "analyzedChars", category, scope);
+        offsets = manager.counter(info, registry, "offsets", category, scope);
+        rewriteFallbacks = manager.counter(info, registry, "rewriteFallbacks", category, scope);
+        parseErrors = manager.counter(info, registry, "parseErrors", category, scope);
+        expansionLimits = manager.counter(info, registry, "expansionLimits", category, scope);
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The highlighting of a single document, as cached between requests. The highlights are an unmodifiable copy, as
+ * the same entry is added to the response of every request which hits it.
+ */
+public class HighlightResult {
+
+    final String uniqueKey;
+    final Object highlights;
+    final boolean truncated;
+
+    /**
+     * @param highlights the highlights of each field, as a map of lists of text or offsets
+     */
+    public HighlightResult(String uniqueKey, Object highlights, boolean truncated) {
+        this.uniqueKey = uniqueKey;
+        this.highlights = unmodifiableCopy(highlights);
+        this.truncated = truncated;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object unmodifiableCopy(Object highlights) {
+        Map<String, List<?>> copy = new HashMap<>();
+        for (Map.Entry<String, List<?>> entry : ((Map<String, List<?>>) highlights).entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HighlightResult(%s, %s, truncated=%s)", uniqueKey, highlights, truncated);
+    }
+
+    /**
+     * The cache key for the highlighting of a document. Document ids are only valid for a single searcher, so the
+     * regenerator finds each document again by its unique key.
+     */
+    public static class Key {
+        final HighlightSpec spec;
+        final int docId;
+
+        public Key(HighlightSpec spec, int docId) {
+            this.spec = spec;
+            this.docId = docId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return docId == that.docId && Objects.equals(spec, that.spec);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * docId + spec.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return spec + "@" + docId;
+        }
+    }
+}
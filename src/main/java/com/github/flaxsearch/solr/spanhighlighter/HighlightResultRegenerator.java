@@ -0,0 +1,82 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Autowarms the highlight result cache, by finding each document of the hottest entries in the new searcher (by
+ * its unique key, as document ids change) and highlighting it again, with the same engine as the original request.
+ * Configure it on the result cache:
+ * <pre>
+ *   &lt;cache name="spanHighlighterResults" class="solr.LRUCache" size="1024" autowarmCount="128"
+ *          regenerator="com.github.flaxsearch.solr.spanhighlighter.HighlightResultRegenerator"/&gt;
+ * </pre>
+ */
+public class HighlightResultRegenerator implements CacheRegenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HighlightResultRegenerator.class);
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache,
+                                  Object oldKey, Object oldVal) throws IOException {
+        HighlightResult.Key key = (HighlightResult.Key) oldKey;
+        HighlightResult result = (HighlightResult) oldVal;
+        IndexSchema schema = newSearcher.getSchema();
+        SchemaField uniqueKeyField = schema.getUniqueKeyField();
+        if (uniqueKeyField == null || result.uniqueKey == null) {
+            // there's no way to find the documents again
+            return false;
+        }
+
+        BytesRefBuilder indexedKey = new BytesRefBuilder();
+        uniqueKeyField.getType().readableToIndexed(result.uniqueKey, indexedKey);
+        int docId = newSearcher.getFirstMatch(new Term(uniqueKeyField.getName(), indexedKey.get()));
+        if (docId < 0) {
+            LOG.trace("{} has been deleted", result.uniqueKey);
+            return true;
+        }
+
+        HighlightFieldPlan fieldPlan = HighlightFieldPlan.compile(schema, key.spec.hlFl);
+        DocumentHighlighter highlighter = key.spec.newHighlighter(schema, fieldPlan, MemoryIndexPool.UNPOOLED);
+        SpanHighlighter.HighlightFieldsVisitor visitor = new SpanHighlighter.HighlightFieldsVisitor(uniqueKeyField,
+                highlighter::isHighlightField, fieldPlan.getSingleValuedFields());
+        newSearcher.doc(docId, visitor);
+        Document document = visitor.getDocument();
+        OffsetCollector collector = collectOffsets(key.spec, highlighter, newSearcher, docId, document);
+        boolean truncated = collector.isTruncated();
+        Object highlights = key.spec.offsetsFormat ? highlighter.renderOffsets(document, collector)
+                : highlighter.render(document, collector);
+        newCache.put(new HighlightResult.Key(key.spec, docId),
+                new HighlightResult(schema.printableUniqueKey(document), highlights, truncated));
+        return true;
+    }
+
+    private static OffsetCollector collectOffsets(HighlightSpec spec, DocumentHighlighter highlighter,
+                                                  SolrIndexSearcher searcher, int docId, Document document) throws IOException {
+        int[] docIds = { docId };
+        Map<Integer, OffsetCollector> offsets = null;
+        if (SpanHighlighter.ENGINE_POSTINGS.equals(spec.engine)) {
+            PostingsEngine engine = PostingsEngine.create(searcher, highlighter.distinctTasks);
+            if (engine != null) {
+                offsets = engine.collect(docIds);
+            }
+        }
+        else if (SpanHighlighter.ENGINE_BATCH.equals(spec.engine)) {
+            offsets = BatchEngine.collect(highlighter, docIds, new Document[] { document }, HighlightBudget.UNLIMITED);
+        }
+        // as in the request, fall back to analysis if the engine can't be used
+        return offsets != null ? offsets.get(docId) : highlighter.collectOffsets(searcher.getIndexReader(), docId, document);
+    }
+}
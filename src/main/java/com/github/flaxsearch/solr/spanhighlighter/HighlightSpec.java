@@ -0,0 +1,76 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.solr.schema.IndexSchema;
+
+/**
+ * Everything about a highlighting request which determines its output for a document: the (rewritten) tasks,
+ * the fields to highlight, the fragment, analysis limit and format settings, and the engine which finds the
+ * offsets (as they may truncate differently). Equal specs produce equal
+ * highlighting for the same document, so a spec is part of the key of cached results, and can build a
+ * highlighter to regenerate them.
+ */
+public class HighlightSpec {
+
+    final List<HighlightingTask> tasks;
+    final String hlFl;
+    final int fragsize;
+    final int snippets;
+    final String boundaryType;
+    final int maxAnalyzedChars;
+    final int maxAnalyzedCharsPerDoc;
+    final boolean offsetsFormat;
+    final String engine;
+
+    public HighlightSpec(List<HighlightingTask> tasks, String hlFl, int fragsize, int snippets, String boundaryType,
+                         int maxAnalyzedChars, int maxAnalyzedCharsPerDoc, boolean offsetsFormat, String engine) {
+        this.tasks = tasks;
+        this.hlFl = hlFl;
+        this.fragsize = fragsize;
+        this.snippets = snippets;
+        this.boundaryType = boundaryType;
+        this.maxAnalyzedChars = maxAnalyzedChars;
+        this.maxAnalyzedCharsPerDoc = maxAnalyzedCharsPerDoc;
+        this.offsetsFormat = offsetsFormat;
+        this.engine = engine;
+    }
+
+    /**
+     * Build a highlighter for this spec.
+     * @param fieldPlan the plan compiled from hl.fl for the schema
+     * @throws IllegalArgumentException if the fragment settings are invalid
+     */
+    public DocumentHighlighter newHighlighter(IndexSchema schema, HighlightFieldPlan fieldPlan, MemoryIndexPool indexPool) {
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, fieldPlan, indexPool);
+        if (fragsize > 0) {
+            highlighter.setFragmenter(new Fragmenter(fragsize, snippets, boundaryType));
+        }
+        highlighter.setMaxAnalyzedChars(maxAnalyzedChars, maxAnalyzedCharsPerDoc);
+        return highlighter;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        HighlightSpec that = (HighlightSpec) o;
+        return fragsize == that.fragsize && snippets == that.snippets && maxAnalyzedChars == that.maxAnalyzedChars
+                && maxAnalyzedCharsPerDoc == that.maxAnalyzedCharsPerDoc && offsetsFormat == that.offsetsFormat
+                && Objects.equals(tasks, that.tasks) && Objects.equals(hlFl, that.hlFl)
+                && Objects.equals(boundaryType, that.boundaryType) && Objects.equals(engine, that.engine);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tasks, hlFl, fragsize, snippets, boundaryType, maxAnalyzedChars, maxAnalyzedCharsPerDoc,
+                offsetsFormat, engine);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HighlightSpec(%s, hl.fl=%s, fragsize=%d, snippets=%d, %s, maxAnalyzedChars=%d/%d, offsets=%s, engine=%s)",
+                tasks, hlFl, fragsize, snippets, boundaryType, maxAnalyzedChars, maxAnalyzedCharsPerDoc, offsetsFormat, engine);
+    }
+}
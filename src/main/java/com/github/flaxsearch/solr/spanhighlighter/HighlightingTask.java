@@ -1,5 +1,7 @@
 package com.github.flaxsearch.solr.spanhighlighter;
 
+import java.util.Objects;
+
 import org.apache.lucene.search.Query;
 
 /**
@@ -20,6 +22,20 @@ public class HighlightingTask {
         this.endTag = endTag;
     }
     
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        HighlightingTask that = (HighlightingTask) o;
+        return priority == that.priority && Objects.equals(query, that.query)
+                && Objects.equals(startTag, that.startTag) && Objects.equals(endTag, that.endTag);
+    }
+    
+    @Override
+    public int hashCode() {
+        return Objects.hash(priority, query, startTag, endTag);
+    }
+    
     public String toString() {
         return String.format("HighlightingTask(%d, %s, %s, %s)", priority, query, startTag, endTag);
     }
@@ -0,0 +1,76 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.memory.MemoryIndex;
+
+/**
+ * A pool of MemoryIndex instances, one for each of the highlighter's own worker threads (see {@link IndexThread}).
+ * A worker's index is reset between documents rather than thrown away, and lives only as long as the worker, so
+ * there are never more of them than the highlighter has threads. Any other thread, such as a request thread, gets a
+ * new index each time. Hit and miss counts are kept so that the reuse can be seen.
+ */
+public class MemoryIndexPool {
+
+    /**
+     * A pool which never reuses an index.
+     */
+    public static final MemoryIndexPool UNPOOLED = new MemoryIndexPool(false);
+
+    private final boolean reuse;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param reuse false if indexes are not to be reused at all.
+     */
+    public MemoryIndexPool(boolean reuse) {
+        this.reuse = reuse;
+    }
+
+    /**
+     * Get an empty index for the current thread. The index remains valid until the next call from the same thread.
+     */
+    public MemoryIndex acquire() {
+        Thread thread = Thread.currentThread();
+        if (reuse == false || thread instanceof IndexThread == false) {
+            misses.incrementAndGet();
+            return new MemoryIndex(true);
+        }
+
+        IndexThread indexThread = (IndexThread) thread;
+        if (indexThread.index == null) {
+            misses.incrementAndGet();
+            indexThread.index = new MemoryIndex(true);
+        }
+        else {
+            hits.incrementAndGet();
+            indexThread.index.reset();
+        }
+        return indexThread.index;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MemoryIndexPool(reuse=%b, hits=%d, misses=%d)", reuse, getHits(), getMisses());
+    }
+
+    /**
+     * A highlighter worker thread, which keeps its memory index between documents.
+     */
+    static class IndexThread extends Thread {
+        private MemoryIndex index;
+
+        IndexThread(Runnable target, String name) {
+            super(target, name);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.spans.SpanCollector;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+/**
+ * Convenience class for collecting offsets from a span query, for a single document. Offsets are kept per field
+ * in growable int arrays rather than as objects, and the arrays are kept for reuse when the collector is cleared.
+ */
+class OffsetCollector implements SpanCollector {
+
+    // don't keep arrays bigger than this between documents
+    static final int MAX_RETAINED_OFFSETS = 64 * 1024;
+
+    private final Map<String, FieldOffsets> offsets = new HashMap<>();
+    private final Deque<FieldOffsets> spare = new ArrayDeque<>();
+    private final List<HighlightingTask> tasks = new ArrayList<>();
+    private int currentTask;
+    private boolean truncated;
+
+    public void setTask(HighlightingTask task) {
+        if (currentTask < tasks.size() && tasks.get(currentTask) == task) {
+            // the spans of one task often come together
+            return;
+        }
+        currentTask = tasks.indexOf(task);
+        if (currentTask == -1) {
+            currentTask = tasks.size();
+            tasks.add(task);
+        }
+    }
+
+    /**
+     * @return true, iff only part of the document's text was searched for offsets.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    /**
+     * @return the highlighting task with the given index, as stored with each offset.
+     */
+    public HighlightingTask task(int index) {
+        return tasks.get(index);
+    }
+
+    /**
+     * @return the fields which have offsets.
+     */
+    public Set<String> fields() {
+        return offsets.keySet();
+    }
+
+    /**
+     * @return the number of offsets collected, over all the fields.
+     */
+    public int size() {
+        int size = 0;
+        for (FieldOffsets fieldOffsets : offsets.values()) {
+            size += fieldOffsets.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the offsets for the field, or null if there are none.
+     */
+    public FieldOffsets get(String field) {
+        return offsets.get(field);
+    }
+
+    /**
+     * Forget all the collected offsets (and tasks), keeping the arrays for reuse.
+     */
+    public void clear() {
+        for (FieldOffsets fieldOffsets : offsets.values()) {
+            if (fieldOffsets.starts.length <= MAX_RETAINED_OFFSETS) {
+                fieldOffsets.size = 0;
+                spare.push(fieldOffsets);
+            }
+        }
+        offsets.clear();
+        tasks.clear();
+        truncated = false;
+    }
+
+    @Override
+    public void collectLeaf(PostingsEnum postingsEnum, int i, Term term) throws IOException {
+        int start = postingsEnum.startOffset();
+        if (start < 0) {
+            // the postings have no offsets
+            return;
+        }
+        FieldOffsets fieldOffsets = offsets.get(term.field());
+        if (fieldOffsets == null) {
+            fieldOffsets = spare.isEmpty() ? new FieldOffsets() : spare.pop();
+            offsets.put(term.field(), fieldOffsets);
+        }
+        fieldOffsets.add(start, postingsEnum.endOffset(), currentTask);
+    }
+
+    @Override
+    public void reset() { }
+
+    /**
+     * The offsets collected for a field. Each entry is a pair of offsets, which indicate where the "pre" and "post"
+     * highlighting tags should be inserted, and the index of the highlighting task which generated it, so we know
+     * the priorities for merging.
+     */
+    class FieldOffsets {
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int[] taskIds = new int[16];
+        int size;
+
+        void add(int start, int end, int task) {
+            if (size == starts.length) {
+                starts = ArrayUtil.grow(starts, size + 1);
+                ends = Arrays.copyOf(ends, starts.length);
+                taskIds = Arrays.copyOf(taskIds, starts.length);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            taskIds[size] = task;
+            size++;
+        }
+
+        /**
+         * Sort the offsets by start (and then longest first), and merge any which overlap, in place. A merged offset
+         * takes the task with the lowest priority value.
+         */
+        void sortAndMerge() {
+            if (size < 2) {
+                return;
+            }
+            new InPlaceMergeSorter() {
+                @Override
+                protected int compare(int i, int j) {
+                    int cmp = Integer.compare(starts[i], starts[j]);
+                    return cmp != 0 ? cmp : Integer.compare(ends[j], ends[i]);
+                }
+
+                @Override
+                protected void swap(int i, int j) {
+                    swapInts(starts, i, j);
+                    swapInts(ends, i, j);
+                    swapInts(taskIds, i, j);
+                }
+            }.sort(0, size);
+
+            int last = 0;
+            for (int i = 1; i < size; i++) {
+                if (ends[last] >= starts[i]) {
+                    ends[last] = Math.max(ends[last], ends[i]);
+                    if (task(taskIds[i]).priority < task(taskIds[last]).priority) {
+                        taskIds[last] = taskIds[i];
+                    }
+                }
+                else {
+                    last++;
+                    starts[last] = starts[i];
+                    ends[last] = ends[i];
+                    taskIds[last] = taskIds[i];
+                }
+            }
+            size = last + 1;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("FieldOffsets:");
+            for (int i = 0; i < size; i++) {
+                builder.append(' ').append(starts[i]).append('-').append(ends[i]);
+            }
+            return builder.toString();
+        }
+    }
+
+    private static void swapInts(int[] array, int i, int j) {
+        int tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+}
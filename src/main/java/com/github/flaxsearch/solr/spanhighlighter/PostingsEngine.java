@@ -0,0 +1,154 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the offsets to highlight straight from the postings of the main index, for fields indexed with
+ * offsets. There is no per-document index and no re-analysis: the weight for each highlighting task is built
+ * once, and each segment is visited once, advancing through just the documents being highlighted.
+ */
+public class PostingsEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PostingsEngine.class);
+
+    private final IndexSearcher searcher;
+    private final List<HighlightingTask> tasks;
+    private final Weight[] weights;
+
+    private PostingsEngine(IndexSearcher searcher, List<HighlightingTask> tasks, Weight[] weights) {
+        this.searcher = searcher;
+        this.tasks = tasks;
+        this.weights = weights;
+    }
+
+    /**
+     * Create an engine for the given tasks.
+     * @return the engine, or null if any of the tasks' terms are in fields which do not have offsets in their
+     * postings (or their queries cannot be expanded against the index), so the documents must be analysed instead.
+     */
+    public static PostingsEngine create(IndexSearcher searcher, List<HighlightingTask> tasks) throws IOException {
+        Weight[] weights = new Weight[tasks.size()];
+        Set<Term> terms = new HashSet<>();
+        try {
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = searcher.createNormalizedWeight(tasks.get(i).query, true);
+                weights[i].extractTerms(terms);
+            }
+        }
+        catch (BooleanQuery.TooManyClauses e) {
+            LOG.debug("too many terms to highlight from postings ({})", e.getMessage());
+            return null;
+        }
+
+        Set<String> fields = new HashSet<>();
+        for (Term term : terms) {
+            fields.add(term.field());
+        }
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            for (String field : fields) {
+                FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+                if (info != null && info.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) < 0) {
+                    LOG.debug("field {} has no offsets in its postings", field);
+                    return null;
+                }
+            }
+        }
+        return new PostingsEngine(searcher, tasks, weights);
+    }
+
+    /**
+     * Collect the offsets for each of the given documents.
+     * @param docIds the (top level) ids of the documents, in any order
+     * @return a collector for each of the documents
+     */
+    public Map<Integer, OffsetCollector> collect(int[] docIds) throws IOException {
+        return collect(docIds, HighlightBudget.UNLIMITED);
+    }
+
+    /**
+     * Collect the offsets for each of the given documents, stopping early if the budget runs out (but not before
+     * something has been found, as the budget may have been spent before collection started). The collectors
+     * of any documents which may have been missed are marked as truncated.
+     * @param docIds the (top level) ids of the documents, in any order
+     * @return a collector for each of the documents
+     */
+    public Map<Integer, OffsetCollector> collect(int[] docIds, HighlightBudget budget) throws IOException {
+        int[] sorted = docIds.clone();
+        Arrays.sort(sorted);
+
+        Map<Integer, OffsetCollector> collectors = new HashMap<>();
+        for (int docId : sorted) {
+            collectors.put(docId, new OffsetCollector());
+        }
+
+        int next = 0;
+        boolean found = false;
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            if (next == sorted.length) {
+                break;
+            }
+
+            // the range of sorted ids within this segment
+            int leafEnd = leaf.docBase + leaf.reader().maxDoc();
+            int from = next;
+            while (next < sorted.length && sorted[next] < leafEnd) {
+                next++;
+            }
+            if (from == next) {
+                continue;
+            }
+
+            for (int t = 0; t < weights.length; t++) {
+                if (found && budget.isExhausted()) {
+                    // stop once we have something to show
+                    collectors.values().forEach(x -> x.setTruncated(true));
+                    return collectors;
+                }
+                Scorer scorer = weights[t].scorer(leaf);
+                if (scorer == null) {
+                    continue;
+                }
+                LOG.debug("collecting spans for {} in segment {}", tasks.get(t), leaf.ord);
+                DocIdSetIterator it = scorer.iterator();
+                for (int i = from; i < next; i++) {
+                    int target = sorted[i] - leaf.docBase;
+                    int doc = it.docID();
+                    if (doc < target) {
+                        doc = it.advance(target);
+                    }
+                    if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+                        break;
+                    }
+                    if (doc == target) {
+                        OffsetCollector collector = collectors.get(sorted[i]);
+                        collector.setTask(tasks.get(t));
+                        found = true;
+                        if (SpanExtractor.collect(scorer, collector, budget) == false) {
+                            collectors.values().forEach(x -> x.setTruncated(true));
+                            return collectors;
+                        }
+                    }
+                }
+            }
+        }
+        return collectors;
+    }
+}
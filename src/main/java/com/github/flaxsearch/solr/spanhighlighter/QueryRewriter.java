@@ -23,6 +23,11 @@ import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.spans.*;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.UnicodeUtil;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
+import org.apache.lucene.util.automaton.Operations;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,8 +38,9 @@ import org.slf4j.LoggerFactory;
  *    
  *   1. All non-span queries are converted to span queries, so that offsets can be collected.
  *   FIXME 2. All fields are renamed "field", so that any query will match in any text field.
- *   FIXME 3. All boolean relationships are converted to OR. This is because we're generating the highlights field-by-field, and need to avoid
- *      the case where an AND query only matches over multiple fields.
+ *   3. All boolean relationships are converted to OR. This is because we're generating the highlights field-by-field, and need to avoid
+ *      the case where an AND query only matches over multiple fields. Nested boolean and dismax queries are flattened into a
+ *      single disjunction of distinct span queries, dropping MUST_NOT and FILTER clauses and anything that can't be highlighted.
  *
  */
 public class QueryRewriter {
@@ -43,6 +49,44 @@ public class QueryRewriter {
 
     public static final QueryRewriter INSTANCE = new QueryRewriter();
 
+    // the same as BooleanQuery's default clause limit, which bounded the expansions before
+    public static final int DEFAULT_MAX_EXPANSIONS = 1024;
+
+    private final int maxExpansions;
+    private final Runnable expansionLimitListener;
+    private final Runnable fallbackListener;
+
+    public QueryRewriter() {
+        this(DEFAULT_MAX_EXPANSIONS, () -> {});
+    }
+
+    /**
+     * @param maxExpansions the maximum number of terms a multi-term query may expand to in a document
+     * @param expansionLimitListener called each time a query's expansion in a document is cut short
+     */
+    public QueryRewriter(int maxExpansions, Runnable expansionLimitListener) {
+        this(maxExpansions, expansionLimitListener, () -> {});
+    }
+
+    /**
+     * @param maxExpansions the maximum number of terms a multi-term query may expand to in a document
+     * @param expansionLimitListener called each time a query's expansion in a document is cut short
+     * @param fallbackListener called each time a query, or a scoring clause of a boolean or dismax query, can't be
+     *                         rewritten as a span query
+     */
+    public QueryRewriter(int maxExpansions, Runnable expansionLimitListener, Runnable fallbackListener) {
+        this.maxExpansions = maxExpansions;
+        this.expansionLimitListener = expansionLimitListener;
+        this.fallbackListener = fallbackListener;
+    }
+
+    /**
+     * @return a rewriter with the same settings, which tells the given listener about the queries it can't rewrite.
+     */
+    public QueryRewriter withFallbackListener(Runnable fallbackListener) {
+        return new QueryRewriter(maxExpansions, expansionLimitListener, fallbackListener);
+    }
+
     public Query rewrite(Query in) {
         if (in instanceof SpanNearQuery)
             return new SpanOffsetReportingQuery((SpanQuery) in);
@@ -60,47 +104,154 @@ public class QueryRewriter {
             return rewriteBoolean((BooleanQuery) in);
 
         if (in instanceof MultiTermQuery)
-            return new SpanOffsetReportingQuery(new SpanMultiTermQueryWrapper<>((MultiTermQuery) in));
+            return new SpanOffsetReportingQuery(rewriteMultiTermQuery((MultiTermQuery) in));
 
         if (in instanceof DisjunctionMaxQuery)
             return rewriteDisjunctionMaxQuery((DisjunctionMaxQuery) in);
         
         if (in instanceof TermInSetQuery)
-            return rewriteTermsQuery((TermInSetQuery) in);
+            return new SpanOffsetReportingQuery(rewriteTermsQuery((TermInSetQuery) in));
         
         if (in instanceof SynonymQuery)
-            return rewriteSynonymQuery((SynonymQuery) in);
+            return new SpanOffsetReportingQuery(rewriteSynonymQuery((SynonymQuery) in));
         
         if (in instanceof MultiPhraseQuery)
-            return rewriteMultiPhraseQuery((MultiPhraseQuery) in);
+            return new SpanOffsetReportingQuery(rewriteMultiPhraseQuery((MultiPhraseQuery) in));
         
         if (in instanceof BoostQuery)
             return rewrite(((BoostQuery) in).getQuery());   // we don't care about boosts for rewriting purposes
         
         if (in instanceof PhraseQuery)
-            return rewritePhraseQuery((PhraseQuery) in);
+            return new SpanOffsetReportingQuery(rewritePhraseQuery((PhraseQuery) in));
         
         LOG.warn("I don't know how to rewrite {}", in);
+        fallbackListener.run();
         return in;
     }
         
     protected Query rewriteDisjunctionMaxQuery(DisjunctionMaxQuery disjunctionMaxQuery) {
-        ArrayList<Query> subQueries = new ArrayList<>();
-        for (Query subQuery : disjunctionMaxQuery) {
-            subQueries.add(rewrite(subQuery));
-        }        
-        return new DisjunctionMaxQuery(subQueries, disjunctionMaxQuery.getTieBreakerMultiplier());
+        Set<Query> leaves = new LinkedHashSet<>();
+        addLeaves(disjunctionMaxQuery, leaves);
+        return disjunction(new ArrayList<>(leaves));
     }
 
     protected Query rewriteBoolean(BooleanQuery bq) {
-        BooleanQuery.Builder newbq = new BooleanQuery.Builder();
-        for (BooleanClause clause : bq) {
-            newbq.add(rewrite(clause.getQuery()), clause.getOccur());
+        Set<Query> leaves = new LinkedHashSet<>();
+        addLeaves(bq, leaves);
+        return disjunction(new ArrayList<>(leaves));
+    }
+
+    /**
+     * Flatten a boolean or dismax query into the distinct span queries which can produce highlights. MUST_NOT
+     * and FILTER clauses never do, and nor do clauses we can't rewrite as span queries, so they are dropped.
+     */
+    private void addLeaves(Query query, Set<Query> leaves) {
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : (BooleanQuery) query) {
+                if (clause.isScoring()) {
+                    addLeaves(clause.getQuery(), leaves);
+                }
+            }
+        }
+        else if (query instanceof DisjunctionMaxQuery) {
+            for (Query disjunct : (DisjunctionMaxQuery) query) {
+                addLeaves(disjunct, leaves);
+            }
+        }
+        else if (query instanceof BoostQuery) {
+            addLeaves(((BoostQuery) query).getQuery(), leaves);
+        }
+        else {
+            Query rewritten = rewrite(query);
+            if (rewritten instanceof SpanQuery) {
+                leaves.add(rewritten);
+            }
+            else {
+                LOG.debug("dropping {}, which can't be highlighted", query);
+            }
         }
-        return new ForceNoBulkScoringQuery(newbq.build());
     }
 
-    protected Query rewriteTermsQuery(TermInSetQuery query) {
+    /**
+     * @return the distinct span queries a rewritten query is a disjunction of, in order.
+     */
+    public List<Query> extractLeaves(Query rewritten) {
+        Set<Query> leaves = new LinkedHashSet<>();
+        addRewrittenLeaves(rewritten, leaves);
+        return new ArrayList<>(leaves);
+    }
+
+    private void addRewrittenLeaves(Query query, Set<Query> leaves) {
+        if (query instanceof ForceNoBulkScoringQuery) {
+            addRewrittenLeaves(((ForceNoBulkScoringQuery) query).getWrappedQuery(), leaves);
+        }
+        else if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : (BooleanQuery) query) {
+                addRewrittenLeaves(clause.getQuery(), leaves);
+            }
+        }
+        else if (query instanceof MatchNoDocsQuery == false) {
+            leaves.add(query);
+        }
+    }
+
+    /**
+     * @return a query matching any of the given (rewritten) leaves, or nothing if there are none.
+     */
+    public Query disjunction(List<Query> leaves) {
+        if (leaves.isEmpty()) {
+            return new MatchNoDocsQuery("nothing to highlight");
+        }
+        if (leaves.size() == 1) {
+            return leaves.get(0);
+        }
+        int maxClauses = BooleanQuery.getMaxClauseCount();
+        if (leaves.size() > maxClauses) {
+            // nest the leaves to keep within the clause limit
+            List<Query> groups = new ArrayList<>();
+            for (int i = 0; i < leaves.size(); i += maxClauses) {
+                groups.add(disjunction(leaves.subList(i, Math.min(i + maxClauses, leaves.size()))));
+            }
+            return disjunction(groups);
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (Query leaf : leaves) {
+            builder.add(leaf, BooleanClause.Occur.SHOULD);
+        }
+        return new ForceNoBulkScoringQuery(builder.build());
+    }
+
+    protected SpanQuery rewriteMultiTermQuery(MultiTermQuery query) {
+        CompiledAutomaton compiled = compile(query);
+        if (compiled == null) {
+            return new SpanMultiTermQueryWrapper<>(query);
+        }
+        return new MultiTermExpansionQuery(query, compiled, maxExpansions, expansionLimitListener);
+    }
+
+    /**
+     * @return the query's automaton, compiled so that it can be run against the term dictionary of each document,
+     * or null if it doesn't have one.
+     */
+    private static CompiledAutomaton compile(MultiTermQuery query) {
+        if (query instanceof AutomatonQuery) {
+            return new CompiledAutomaton(((AutomatonQuery) query).getAutomaton(), null, true,
+                    Operations.DEFAULT_MAX_DETERMINIZED_STATES, query instanceof TermRangeQuery);
+        }
+        if (query instanceof FuzzyQuery) {
+            FuzzyQuery fuzzy = (FuzzyQuery) query;
+            int[] codePoints = fuzzy.getTerm().text().codePoints().toArray();
+            int prefixLength = Math.min(fuzzy.getPrefixLength(), codePoints.length);
+            String prefix = UnicodeUtil.newString(codePoints, 0, prefixLength);
+            String suffix = UnicodeUtil.newString(codePoints, prefixLength, codePoints.length - prefixLength);
+            Automaton automaton = new LevenshteinAutomata(suffix, fuzzy.getTranspositions())
+                    .toAutomaton(fuzzy.getMaxEdits(), prefix);
+            return new CompiledAutomaton(automaton, null, true);
+        }
+        return null;
+    }
+
+    protected SpanQuery rewriteTermsQuery(TermInSetQuery query) {
         List<SpanTermQuery> spanQueries = new ArrayList<>();
         try {
             PrefixCodedTerms terms = query.getTermData();
@@ -130,7 +281,7 @@ public class QueryRewriter {
     * This method is only able to rewrite standard phrases where each word must follow the previous one
     * with no gaps or overlaps.  This means, for example, that phrases must not have stopwords in them.
     */
-    protected Query rewritePhraseQuery(PhraseQuery query) {
+    protected SpanQuery rewritePhraseQuery(PhraseQuery query) {
         Term[] terms = query.getTerms();
         int[] positions = query.getPositions();
         SpanTermQuery[] spanQueries = new SpanTermQuery[positions.length];
@@ -173,7 +324,47 @@ public class QueryRewriter {
         }
         return snq.build();
     }
-    
+
+    /**
+     * Find the fields a rewritten query can match in, without expanding it against an index.
+     * @return the fields, or null if the query contains anything we didn't rewrite, so it might match in any field.
+     */
+    public Set<String> extractFields(Query rewritten) {
+        Set<String> fields = new HashSet<>();
+        return addFields(rewritten, fields) ? fields : null;
+    }
+
+    private boolean addFields(Query query, Set<String> fields) {
+        if (query instanceof SpanQuery) {
+            fields.add(((SpanQuery) query).getField());
+            return true;
+        }
+        if (query instanceof MatchNoDocsQuery) {
+            // everything was pruned
+            return true;
+        }
+        if (query instanceof ForceNoBulkScoringQuery) {
+            return addFields(((ForceNoBulkScoringQuery) query).getWrappedQuery(), fields);
+        }
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : (BooleanQuery) query) {
+                if (addFields(clause.getQuery(), fields) == false) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (query instanceof DisjunctionMaxQuery) {
+            for (Query disjunct : (DisjunctionMaxQuery) query) {
+                if (addFields(disjunct, fields) == false) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
     /**
      * SpanQuery that wraps another SpanQuery, ensuring that offsets are loaded
      * from the postings lists and exposed to SpanCollectors.
@@ -205,7 +396,7 @@ public class QueryRewriter {
             SpanQuery rewritten = (SpanQuery) in.rewrite(reader);
             if (in == rewritten)
                 return this;
-            return new SpanOffsetReportingQuery((SpanQuery)in.rewrite(reader));
+            return new SpanOffsetReportingQuery(rewritten);
         }
 
         @Override
@@ -269,6 +460,97 @@ public class QueryRewriter {
         }
     }
     
+    /**
+     * A multi-term query for highlighting, which matches its automaton (compiled once, when the query is rewritten
+     * for highlighting) directly against the term dictionary of each document's index. In a single document, it
+     * expands to at most maxExpansions terms, keeping those which occur most often; against an index of many
+     * documents, expanding to more terms than that throws TooManyClauses, so the caller can fall back to
+     * highlighting one document at a time.
+     */
+    private static class MultiTermExpansionQuery extends SpanQuery {
+
+        private final MultiTermQuery query;
+        private final CompiledAutomaton compiled;
+        private final int maxExpansions;
+        private final Runnable expansionLimitListener;
+
+        MultiTermExpansionQuery(MultiTermQuery query, CompiledAutomaton compiled, int maxExpansions,
+                                Runnable expansionLimitListener) {
+            this.query = query;
+            this.compiled = compiled;
+            this.maxExpansions = maxExpansions;
+            this.expansionLimitListener = expansionLimitListener;
+        }
+
+        @Override
+        public String getField() {
+            return query.getField();
+        }
+
+        @Override
+        public Query rewrite(IndexReader reader) throws IOException {
+            // the total frequency of each matching term, in term order
+            Map<BytesRef, Long> freqs = new TreeMap<>();
+            boolean singleDoc = reader.maxDoc() <= 1;
+            for (LeafReaderContext leaf : reader.leaves()) {
+                Terms terms = leaf.reader().terms(query.getField());
+                if (terms == null) {
+                    continue;
+                }
+                TermsEnum termsEnum = compiled.getTermsEnum(terms);
+                for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                    freqs.merge(BytesRef.deepCopyOf(term), termsEnum.totalTermFreq(), Long::sum);
+                    if (singleDoc == false && freqs.size() > maxExpansions) {
+                        // fail fast, rather than enumerating every term of a big index just to fall back
+                        throw new BooleanQuery.TooManyClauses();
+                    }
+                }
+            }
+
+            Collection<BytesRef> expansions = freqs.keySet();
+            if (freqs.size() > maxExpansions) {
+                LOG.debug("{} expands to {} terms, highlighting the {} most frequent", query, freqs.size(), maxExpansions);
+                expansionLimitListener.run();
+                List<Map.Entry<BytesRef, Long>> entries = new ArrayList<>(freqs.entrySet());
+                entries.sort(Map.Entry.<BytesRef, Long>comparingByValue().reversed());   // stable, so ties keep term order
+                expansions = new ArrayList<>();
+                for (Map.Entry<BytesRef, Long> entry : entries.subList(0, maxExpansions)) {
+                    expansions.add(entry.getKey());
+                }
+            }
+
+            SpanQuery[] clauses = new SpanQuery[expansions.size()];
+            int i = 0;
+            for (BytesRef term : expansions) {
+                clauses[i++] = new SpanTermQuery(new Term(query.getField(), term));
+            }
+            return new SpanOrQuery(clauses);
+        }
+
+        @Override
+        public SpanWeight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+            throw new IllegalStateException("Rewrite first");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            MultiTermExpansionQuery that = (MultiTermExpansionQuery) o;
+            return maxExpansions == that.maxExpansions && Objects.equals(query, that.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, maxExpansions);
+        }
+
+        @Override
+        public String toString(String field) {
+            return query.toString(field);
+        }
+    }
+
     private static class ForceNoBulkScoringQuery extends Query {
 
         private final Query inner;
@@ -0,0 +1,127 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.Query;
+
+/**
+ * A bounded LRU cache of highlighting queries rewritten by the QueryRewriter, shared between requests.
+ * Entries are keyed on the parsed query, so two requests share an entry whenever their queries are equal,
+ * whatever their query strings, parsers or parameters were. Hit, miss and eviction counts are kept for sizing.
+ * Each entry remembers how many parts of its query couldn't be rewritten, so that they can be reported for every
+ * lookup, whether it hits the cache or not.
+ */
+public class RewriteCache {
+
+    private final int maxSize;
+    private final QueryRewriter rewriter;
+    private final Map<Query, Rewritten> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of rewritten queries to keep. If this is zero or less, nothing is cached.
+     */
+    public RewriteCache(int maxSize) {
+        this(maxSize, QueryRewriter.INSTANCE);
+    }
+
+    /**
+     * @param maxSize the maximum number of rewritten queries to keep. If this is zero or less, nothing is cached.
+     * @param rewriter rewrites the queries which aren't cached
+     */
+    public RewriteCache(int maxSize, QueryRewriter rewriter) {
+        this.maxSize = maxSize;
+        this.rewriter = rewriter;
+        this.cache = new LinkedHashMap<Query, Rewritten>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Query, Rewritten> eldest) {
+                if (size() > RewriteCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the rewritten query, from the cache if possible.
+     */
+    public Query rewrite(Query in) {
+        return rewrite(in, () -> {});
+    }
+
+    /**
+     * @param fallbackListener called for each part of the query which couldn't be rewritten, as the QueryRewriter's
+     *                         listener would be, even if the rewritten query comes from the cache
+     * @return the rewritten query, from the cache if possible.
+     */
+    public Query rewrite(Query in, Runnable fallbackListener) {
+        Rewritten rewritten = null;
+        if (maxSize > 0) {
+            synchronized (cache) {
+                rewritten = cache.get(in);
+            }
+            if (rewritten != null) {
+                hits.incrementAndGet();
+            }
+        }
+
+        if (rewritten == null) {
+            // rewrite outside the lock; if two threads race, both rewrite and the last one in wins
+            misses.incrementAndGet();
+            AtomicInteger fallbacks = new AtomicInteger();
+            Query query = rewriter.withFallbackListener(fallbacks::incrementAndGet).rewrite(in);
+            rewritten = new Rewritten(query, fallbacks.get());
+            if (maxSize > 0) {
+                synchronized (cache) {
+                    cache.put(in, rewritten);
+                }
+            }
+        }
+
+        for (int i = 0; i < rewritten.fallbacks; i++) {
+            fallbackListener.run();
+        }
+        return rewritten.query;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static class Rewritten {
+        final Query query;
+        final int fallbacks;
+
+        Rewritten(Query query, int fallbacks) {
+            this.query = query;
+            this.fallbacks = fallbacks;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RewriteCache(size=%d/%d, hits=%d, misses=%d, evictions=%d)",
+                size(), maxSize, getHits(), getMisses(), getEvictions());
+    }
+}
@@ -54,6 +54,9 @@ public class SpanExtractor {
         return spans;
     }
 
+    // how many spans to collect between checks of the budget
+    static final int BUDGET_CHECK_INTERVAL = 128;
+
     /**
      * Collect all Spans extracted from a Scorer using a SpanCollector
      * @param scorer the scorer to extract Spans from
@@ -61,8 +64,22 @@ public class SpanExtractor {
      * @throws IOException on error
      */
     public static void collect(Scorer scorer, SpanCollector collector) throws IOException {
+        collect(scorer, collector, HighlightBudget.UNLIMITED);
+    }
+
+    /**
+     * Collect the Spans extracted from a Scorer using a SpanCollector, stopping early if the budget runs out
+     * @param scorer the scorer to extract Spans from
+     * @param collector the SpanCollector
+     * @param budget the budget to charge for the collected spans
+     * @return false if collection stopped because the budget ran out
+     * @throws IOException on error
+     */
+    public static boolean collect(Scorer scorer, SpanCollector collector, HighlightBudget budget) throws IOException {
         List<Spans> allSpans = getSpans(scorer);
         int doc = scorer.docID();
+        boolean limited = budget.isLimited();
+        int collected = 0;
 
         for (Spans spans : allSpans) {
             int spanDoc = spans.docID();
@@ -71,9 +88,18 @@ public class SpanExtractor {
                 while (spans.nextStartPosition() != Spans.NO_MORE_POSITIONS) {
                     if (spans.startPosition() != -1) {
                         spans.collect(collector);
+                        if (limited && ++collected == BUDGET_CHECK_INTERVAL) {
+                            budget.addOffsets(collected);
+                            collected = 0;
+                            if (budget.isExhausted()) {
+                                return false;
+                            }
+                        }
                     }
                 }
             }
         }
+        budget.addOffsets(collected);
+        return true;
     }
 }
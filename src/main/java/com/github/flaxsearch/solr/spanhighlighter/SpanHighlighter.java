@@ -3,25 +3,55 @@ package com.github.flaxsearch.solr.spanhighlighter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.PluginInfo;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoBean;
 import org.apache.solr.highlight.SolrHighlighter;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.metrics.SolrMetricProducer;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocList;
 import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SyntaxError;
 import org.apache.solr.util.plugin.PluginInfoInitialized;
@@ -30,12 +60,14 @@ import org.apache.solr.schema.FieldType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * FIXME
  */
-public class SpanHighlighter extends SolrHighlighter implements PluginInfoInitialized {
+public class SpanHighlighter extends SolrHighlighter implements PluginInfoInitialized, SolrInfoBean, SolrMetricProducer {
 
     // a list of fields to highlight, either comma- or space-delimited 
     static final String HL_FL = "hl.fl";
@@ -53,20 +85,167 @@ public class SpanHighlighter extends SolrHighlighter implements PluginInfoInitia
     static final String HL_QPARSER = "hl.qparser";
         
     static final String DEFAULT_QPARSER = "lucene";
+    
+    // if greater than zero, return up to hl.snippets fragments of about this many characters for each field,
+    // instead of each matching value in full. Fragments start and end on hl.bs.type (SENTENCE, WORD or NONE) boundaries.
+    static final String HL_FRAGSIZE = "hl.fragsize";
+    
+    static final String HL_SNIPPETS = "hl.snippets";
+    
+    static final String HL_BS_TYPE = "hl.bs.type";
+    
+    // the maximum number of characters of each field, and of each document, to analyse (-1 for no limit). Text
+    // beyond the limits is returned without highlighting, and the unique keys of any documents which were cut
+    // short are listed under hl.truncated in the response header.
+    static final String HL_MAX_ANALYZED_CHARS = "hl.maxAnalyzedChars";
+    
+    static final String HL_MAX_ANALYZED_CHARS_PER_DOC = "hl.maxAnalyzedCharsPerDoc";
+    
+    static final String HL_TRUNCATED = "hl.truncated";
+    
+    // a budget for the whole request: the time it may take in milliseconds, and the total number of characters it
+    // may analyse and spans it may collect over all its documents (-1 for no limit). When the budget runs out,
+    // highlighting stops, documents not yet highlighted are left out, and hl.partial=true is set in the response header.
+    static final String HL_TIME_ALLOWED = "hl.timeAllowed";
+    
+    static final String HL_MAX_ANALYZED_CHARS_PER_REQUEST = "hl.maxAnalyzedCharsPerRequest";
+    
+    static final String HL_MAX_OFFSETS = "hl.maxOffsets";
+    
+    static final String HL_PARTIAL = "hl.partial";
+    
+    // "offsets" returns the positions of the highlights in each field, as a flat list of (value index, start, end,
+    // task priority) entries, rather than highlighted text, for clients which render the highlighting themselves.
+    static final String HL_FORMAT = "hl.format";
+    
+    static final String FORMAT_OFFSETS = "offsets";
+    
+    // if true (the default), look up the queries' terms in the main index first, so that fields and documents
+    // which contain none of them are not analysed
+    static final String HL_PREFILTER = "hl.prefilter";
+    
+    // the number of threads used to highlight the documents of a single request. The plugin config sets the
+    // size of the shared pool, and a request may ask for fewer (but not more) threads.
+    static final String HL_THREADS = "hl.threads";
+    
+    static final String CONF_THREADS = "threads";
+    
+    static final int DEFAULT_THREADS = 1;
+    
+    // the number of documents whose stored fields are loaded ahead, on a separate thread, while the current one is
+    // highlighted, when documents are highlighted one at a time. The plugin config sets the maximum (0, the default,
+    // to disable prefetching), and a request may ask for fewer.
+    static final String HL_PREFETCH = "hl.prefetch";
+    
+    static final String CONF_PREFETCH = "prefetch";
+    
+    static final int DEFAULT_PREFETCH = 0;
+    
+    // the number of requests whose documents may be prefetched at once. Beyond that, requests load their
+    // documents as they highlight them.
+    static final String CONF_PREFETCH_THREADS = "prefetchThreads";
+    
+    static final int DEFAULT_PREFETCH_THREADS = 4;
+    
+    // whether each highlighting thread keeps its MemoryIndex between documents (only with threads > 1, as the
+    // requesting threads don't keep one)
+    static final String CONF_REUSE_INDEXES = "reuseMemoryIndexes";
+    
+    static final boolean DEFAULT_REUSE_INDEXES = true;
+    
+    // how to find the offsets to highlight: "analysis" builds an index for each document from its stored fields
+    // (or term vectors), "batch" analyses the stored fields of the whole page into one index and runs each query
+    // across it once, and "postings" reads them from the main index, falling back to analysis if any of the
+    // query fields are indexed without offsets. The plugin config sets the default.
+    static final String HL_ENGINE = "hl.engine";
+    
+    static final String CONF_ENGINE = "engine";
+    
+    static final String ENGINE_ANALYSIS = "analysis";
+    
+    static final String ENGINE_BATCH = "batch";
+    
+    static final String ENGINE_POSTINGS = "postings";
+    
+    // the number of rewritten highlighting queries to cache across requests (0 to disable)
+    static final String CONF_REWRITE_CACHE_SIZE = "rewriteCacheSize";
+    
+    static final int DEFAULT_REWRITE_CACHE_SIZE = 512;
+    
+    // the maximum number of terms a wildcard, prefix, regexp, range or fuzzy query may expand to in a document.
+    // Beyond that, only its most frequent terms are highlighted, and the expansionLimits metric is incremented.
+    static final String CONF_MAX_EXPANSIONS = "maxExpansions";
         
     private static final Logger LOG = LoggerFactory.getLogger(SpanHighlighter.class);
 
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    // the maximum number of threads highlighting any one request, and the pool they are taken from (null if serial)
+    private int maxThreads = DEFAULT_THREADS;
+    ExecutorService executor;
+    
+    // the maximum number of documents to prefetch, and the threads which load them (null if not prefetching)
+    private int maxPrefetch = DEFAULT_PREFETCH;
+    ExecutorService prefetchExecutor;
+    
+    private MemoryIndexPool indexPool = new MemoryIndexPool(DEFAULT_REUSE_INDEXES);
+    
+    private String defaultEngine = ENGINE_ANALYSIS;
+    
+    private RewriteCache rewriteCache = new RewriteCache(DEFAULT_REWRITE_CACHE_SIZE);
+    
+    // compiled hl.fl field plans for each live schema, keyed on the hl.fl parameter. The plans must not refer to the
+    // schema, or it would never be dropped.
+    private final Map<IndexSchema, Map<String, HighlightFieldPlan>> fieldPlans =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    
+    static final int MAX_FIELD_PLANS = 100;
+    
+    // the name of the user cache (declared in solrconfig.xml) holding analysed fields, so that they are not analysed
+    // again when the same document is highlighted by a later request. For example:
+    //   <cache name="spanHighlighterTokens" class="solr.LRUCache" size="4096" maxRamMB="64"/>
+    // Entries are keyed on internal document ids, so the cache is thrown away (not autowarmed) when the searcher changes.
+    static final String CONF_TOKEN_CACHE = "tokenCache";
+    
+    static final String DEFAULT_TOKEN_CACHE = "spanHighlighterTokens";
+    
+    private String tokenCacheName = DEFAULT_TOKEN_CACHE;
+    
+    // the name of the user cache holding highlighted documents, keyed on the request's HighlightSpec and the
+    // document id. Configure it with a HighlightResultRegenerator to re-highlight the hottest entries on new searchers.
+    static final String CONF_RESULT_CACHE = "resultCache";
+    
+    static final String DEFAULT_RESULT_CACHE = "spanHighlighterResults";
+    
+    private String resultCacheName = DEFAULT_RESULT_CACHE;
+    
+    HighlightMetrics metrics = HighlightMetrics.UNREPORTED;
+    
+    private final Set<String> metricNames = ConcurrentHashMap.newKeySet();
+    
+    private MetricRegistry registry;
+
     @Override
     public NamedList<Object> doHighlighting(DocList docs, Query query, SolrQueryRequest req, String[] defaultFields)
             throws IOException {
-        
+        Timer.Context requestTime = metrics.requests.time();
+        try {
+            return highlight(docs, query, req);
+        }
+        finally {
+            requestTime.stop();
+        }
+    }
+    
+    private NamedList<Object> highlight(DocList docs, Query query, SolrQueryRequest req) throws IOException {
         SolrIndexSearcher searcher = req.getSearcher();
         IndexSchema schema = searcher.getSchema();
         SolrParams reqParams = req.getParams();
+        HighlightBudget budget = new HighlightBudget(reqParams.getLong(HL_TIME_ALLOWED, -1),
+                reqParams.getLong(HL_MAX_ANALYZED_CHARS_PER_REQUEST, -1), reqParams.getLong(HL_MAX_OFFSETS, -1));
 
         String hlTagPre = reqParams.get(HL_TAG_PRE, "<em>"); 
         String hlTagPost = reqParams.get(HL_TAG_POST, "</em>");
-        String[] hlFields = reqParams.get(HL_FL, "").split("[\\s\\,]");
         String hlQParser = reqParams.get(HL_QPARSER, DEFAULT_QPARSER);
         
         // highlighting output goes here
@@ -84,37 +263,520 @@ public class SpanHighlighter extends SolrHighlighter implements PluginInfoInitia
             try {
                 QParser parser = QParser.getParser(q, hlQParser, req);
                 Query mquery = parser.parse();
-                Query rewritten = QueryRewriter.INSTANCE.rewrite(mquery);
+                Query rewritten = rewrite(mquery);
                 LOG.debug("query rewritten {} -> {}", mquery, rewritten);
                 tasks.add(new HighlightingTask(i, rewritten, tagPre, tagPost));
             }
             catch (SyntaxError e) {
+                metrics.parseErrors.inc();
                 LOG.error("could not parse query {} ({})", q, e);
             }
         }
 
         if (tasks.isEmpty()) {
             // highlight the single main query
-            Query rewritten = QueryRewriter.INSTANCE.rewrite(query);
+            Query rewritten = rewrite(query);
             LOG.debug("main query rewritten {} -> {}", query, rewritten);
             tasks = Arrays.asList(new HighlightingTask(0, rewritten, hlTagPre, hlTagPost));
         }
 
-        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, hlFields);                
+        String hlFl = reqParams.get(HL_FL, "");
+        String engineName = reqParams.get(HL_ENGINE, defaultEngine);
+        HighlightSpec spec = new HighlightSpec(tasks, hlFl, reqParams.getInt(HL_FRAGSIZE, 0), reqParams.getInt(HL_SNIPPETS, 1),
+                reqParams.get(HL_BS_TYPE, Fragmenter.BOUNDARY_SENTENCE), limit(reqParams.getInt(HL_MAX_ANALYZED_CHARS, -1)),
+                limit(reqParams.getInt(HL_MAX_ANALYZED_CHARS_PER_DOC, -1)), FORMAT_OFFSETS.equals(reqParams.get(HL_FORMAT)),
+                engineName);
+        DocumentHighlighter highlighter;
+        try {
+            highlighter = spec.newHighlighter(schema, getFieldPlan(schema, hlFl), indexPool);
+        }
+        catch (IllegalArgumentException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e.getMessage(), e);
+        }
+        highlighter.setTokenCache(getTokenCache(searcher));
+        highlighter.setMetrics(metrics);
+        highlighter.setBudget(budget);
 
-        // Loop through the documents from the result set, applying highlighting
+        int[] docIds = new int[docs.size()];
         DocIterator it = docs.iterator();
-        while (it.hasNext()) {
-            int doc = it.nextDoc();
-            Document document = searcher.doc(doc);
-            String docId = schema.printableUniqueKey(document);
-            ret.add(docId, highlighter.highlightDoc(document));            
+        for (int i = 0; i < docIds.length; i++) {
+            docIds[i] = it.nextDoc();
+        }
+        
+        // the documents' positions in docid order, in which they are loaded and highlighted, so that stored fields
+        // are read forwards through each segment rather than jumping between (and decompressing the same)
+        // compressed blocks in score order. The results are still returned in DocList order. With a budget, the
+        // documents are kept in score order, so that if it runs out, it is the lowest ranked ones which are left out.
+        int[] order = IntStream.range(0, docIds.length).toArray();
+        if (budget.isLimited() == false) {
+            order = IntStream.range(0, docIds.length).boxed()
+                    .sorted(Comparator.comparingInt(i -> docIds[i])).mapToInt(Integer::intValue).toArray();
+        }
+
+        // look up the documents which were highlighted the same way before
+        SolrCache<HighlightResult.Key, HighlightResult> resultCache = getResultCache(searcher);
+        HighlightResult[] cached = new HighlightResult[docIds.length];
+        int[] uncachedIds = docIds;
+        if (resultCache != null) {
+            for (int i = 0; i < docIds.length; i++) {
+                cached[i] = resultCache.get(new HighlightResult.Key(spec, docIds[i]));
+            }
+            uncachedIds = IntStream.range(0, docIds.length).filter(i -> cached[i] == null).map(i -> docIds[i]).toArray();
+        }
+
+        int threads = Math.min(reqParams.getInt(HL_THREADS, maxThreads), maxThreads);
+
+        // collect the offsets for the whole page up front if we can get them from the main index
+        Map<Integer, OffsetCollector> indexOffsets = null;
+        if (ENGINE_POSTINGS.equals(engineName)) {
+            PostingsEngine engine = PostingsEngine.create(searcher, highlighter.distinctTasks);
+            if (engine != null) {
+                Timer.Context collectionTime = metrics.collection.time();
+                indexOffsets = engine.collect(uncachedIds, budget);
+                collectionTime.stop();
+            }
+            else {
+                LOG.debug("cannot highlight from postings, analysing documents instead");
+            }
+        }
+        
+        // when analysing, find out which fields of which documents can't match, so we can skip them
+        TermPresenceFilter filter = null;
+        if (indexOffsets == null && uncachedIds.length > 0 && reqParams.getBool(HL_PREFILTER, true)) {
+            filter = TermPresenceFilter.create(searcher, highlighter.distinctTasks, highlighter, docIds);
+        }
+        final TermPresenceFilter prefilter = filter;    // for lambda
+        
+        // or analyse the whole page into one index, and collect the offsets from that
+        Document[] loaded = new Document[docIds.length];
+        if (indexOffsets == null && ENGINE_BATCH.equals(engineName) && uncachedIds.length > 0) {
+            forEachDoc(executor, order, threads, i -> {
+                if (cached[i] == null && (prefilter == null || prefilter.mayMatchAny(i))) {
+                    loaded[i] = loadDocument(searcher, docIds[i], highlighter, prefilter, i);
+                }
+            });
+            Timer.Context collectionTime = metrics.collection.time();
+            indexOffsets = BatchEngine.collect(highlighter, docIds, loaded, budget);
+            collectionTime.stop();
+            if (indexOffsets == null) {
+                LOG.debug("cannot highlight in a batch, analysing documents one at a time instead");
+            }
+        }
+        final Map<Integer, OffsetCollector> offsets = indexOffsets;    // for lambda
+
+        // Highlight the documents from the result set, possibly in parallel, keeping the results in DocList order
+        String[] uniqueKeys = new String[docIds.length];
+        Object[] highlights = new Object[docIds.length];
+        boolean[] truncated = new boolean[docIds.length];
+        
+        // when highlighting one document at a time, load the next documents while the current one is highlighted
+        DocumentPrefetcher prefetcher = null;
+        int prefetch = Math.min(reqParams.getInt(HL_PREFETCH, maxPrefetch), maxPrefetch);
+        if (prefetchExecutor != null && prefetch > 0 && (executor == null || threads <= 1)) {
+            int[] toLoad = Arrays.stream(order).filter(i -> cached[i] == null && loaded[i] == null).toArray();
+            if (toLoad.length > 1) {
+                try {
+                    prefetcher = new DocumentPrefetcher(prefetchExecutor, toLoad, prefetch,
+                            i -> loadDocument(searcher, docIds[i], highlighter, prefilter, i));
+                }
+                catch (RejectedExecutionException e) {
+                    LOG.debug("all prefetch threads are busy, loading documents as they are highlighted");
+                }
+            }
+        }
+        final DocumentPrefetcher prefetched = prefetcher;    // for lambda
+        
+        try {
+            forEachDoc(executor, order, threads, i -> {
+                if (cached[i] != null) {
+                    uniqueKeys[i] = cached[i].uniqueKey;
+                    highlights[i] = cached[i].highlights;
+                    truncated[i] = cached[i].truncated;
+                    metrics.documents.inc();
+                    return;
+                }
+                // documents whose offsets were collected up front are always returned, as that work is done
+                boolean mayMatch = prefilter == null || prefilter.mayMatchAny(i);
+                OffsetCollector collected = offsets != null ? offsets.get(docIds[i]) : null;
+                if (mayMatch && collected == null && budget.isExhausted()) {
+                    // out of time or work: leave out the rest of the documents which need analysing
+                    return;
+                }
+            
+                Document document = loaded[i] != null ? loaded[i]
+                        : prefetched != null ? prefetched.take(i)
+                        : loadDocument(searcher, docIds[i], highlighter, prefilter, i);
+                uniqueKeys[i] = schema.printableUniqueKey(document);
+                if (mayMatch) {
+                    OffsetCollector collector = collected != null ? collected
+                            : highlighter.collectOffsets(searcher.getIndexReader(), docIds[i], document);
+                    truncated[i] = collector.isTruncated();
+                    metrics.offsets.inc(collector.size());
+                    Timer.Context renderTime = metrics.rendering.time();
+                    highlights[i] = spec.offsetsFormat ? highlighter.renderOffsets(document, collector)
+                            : highlighter.render(document, collector);
+                    renderTime.stop();
+                }
+                else {
+                    highlights[i] = Collections.emptyMap();
+                }
+                metrics.documents.inc();
+                if (resultCache != null && budget.wasExhausted() == false) {
+                    resultCache.put(new HighlightResult.Key(spec, docIds[i]), new HighlightResult(uniqueKeys[i], highlights[i], truncated[i]));
+                }
+            });
+        }
+        finally {
+            if (prefetched != null) {
+                prefetched.close();
+            }
+        }
+        
+        List<String> truncatedKeys = new ArrayList<>();
+        for (int i = 0; i < docIds.length; i++) {
+            if (highlights[i] == null) {
+                continue;
+            }
+            ret.add(uniqueKeys[i], highlights[i]);
+            if (truncated[i]) {
+                truncatedKeys.add(uniqueKeys[i]);
+            }
+        }
+        reportTruncated(truncatedKeys);
+        if (budget.wasExhausted()) {
+            LOG.debug("highlighting stopped early: {}", budget);
+            addToResponseHeader(HL_PARTIAL, true);
         }
         
+        LOG.debug("{} {}", indexPool, rewriteCache);
         return ret;
     }
 
+    /**
+     * Load the unique key and the highlight fields of a document, leaving out any fields the prefilter rules out.
+     * @param index the position of the document in the DocList
+     */
+    private Document loadDocument(SolrIndexSearcher searcher, int docId, DocumentHighlighter highlighter,
+                                  TermPresenceFilter prefilter, int index) throws IOException {
+        // only load the fields we need, not every stored field of the document
+        boolean mayMatch = prefilter == null || prefilter.mayMatchAny(index);
+        HighlightFieldsVisitor visitor = new HighlightFieldsVisitor(searcher.getSchema().getUniqueKeyField(), name -> mayMatch
+                && highlighter.isHighlightField(name) && (prefilter == null || prefilter.mayMatch(index, name)),
+                highlighter.fieldPlan.getSingleValuedFields());
+        Timer.Context loadTime = metrics.loading.time();
+        searcher.doc(docId, visitor);
+        loadTime.stop();
+        return visitor.getDocument();
+    }
+
+    /**
+     * @return the rewritten query, from the cache if possible, counting any parts that couldn't be rewritten.
+     */
+    Query rewrite(Query query) {
+        return rewriteCache.rewrite(query, () -> metrics.rewriteFallbacks.inc());
+    }
+    
+    /**
+     * @return the searcher's token cache, or null if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    private SolrCache<AnalyzedField.Key, AnalyzedField> getTokenCache(SolrIndexSearcher searcher) {
+        return (SolrCache<AnalyzedField.Key, AnalyzedField>) searcher.getCache(tokenCacheName);
+    }
+    
+    /**
+     * @return the searcher's highlight result cache, or null if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    private SolrCache<HighlightResult.Key, HighlightResult> getResultCache(SolrIndexSearcher searcher) {
+        return (SolrCache<HighlightResult.Key, HighlightResult>) searcher.getCache(resultCacheName);
+    }
+    
+    /**
+     * @return the analysis limit for a parameter value, where zero or less means no limit.
+     */
+    private static int limit(int maxChars) {
+        return maxChars > 0 ? maxChars : Integer.MAX_VALUE;
+    }
+    
+    /**
+     * Tell the client which documents were only partly highlighted, in the response header.
+     */
+    private static void reportTruncated(List<String> uniqueKeys) {
+        if (uniqueKeys.isEmpty()) {
+            return;
+        }
+        LOG.debug("highlighting truncated for {}", uniqueKeys);
+        addToResponseHeader(HL_TRUNCATED, uniqueKeys);
+    }
+    
+    private static void addToResponseHeader(String name, Object value) {
+        SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+        if (info != null && info.getRsp() != null && info.getRsp().getResponseHeader() != null) {
+            info.getRsp().getResponseHeader().add(name, value);
+        }
+    }
+    
+    /**
+     * @return the compiled plan for the hl.fl parameter, shared by all requests using the same schema.
+     */
+    HighlightFieldPlan getFieldPlan(IndexSchema schema, String hlFl) {
+        Map<String, HighlightFieldPlan> plans = fieldPlans.computeIfAbsent(schema, x -> new ConcurrentHashMap<>());
+        HighlightFieldPlan plan = plans.get(hlFl);
+        if (plan == null) {
+            if (plans.size() >= MAX_FIELD_PLANS) {
+                // hl.fl values are normally few; if clients vary them wildly, just start again
+                plans.clear();
+            }
+            plan = HighlightFieldPlan.compile(schema, hlFl);
+            plans.put(hlFl, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Run the work for each of the given document positions, starting them in that order, using up to the given
+     * number of threads from the executor. The calling thread always takes part, so the work completes even if the
+     * shared pool is busy with other requests, and no work is still running once this returns.
+     */
+    static void forEachDoc(ExecutorService executor, int[] order, int threads, DocWork work) throws IOException {
+        int count = order.length;
+        if (executor == null || threads <= 1 || count <= 1) {
+            for (int i : order) {
+                work.run(i);
+            }
+            return;
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        Callable<Void> worker = () -> {
+            for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                work.run(order[i]);
+            }
+            return null;
+        };
+        
+        List<Future<Void>> futures = new ArrayList<>();
+        try {
+            for (int t = 1; t < Math.min(threads, count); t++) {
+                futures.add(executor.submit(worker));
+            }
+            worker.call();
+            for (Future<Void> future : futures) {
+                // workers still queued behind other requests have nothing left to do
+                if (future.cancel(false) == false) {
+                    future.get();
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while highlighting", e);
+        }
+        catch (IOException | RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        finally {
+            // after a failure, stop the workers (without interrupting them, which would close the index channels
+            // they are reading from), and wait for those already running, as they use the request's state
+            next.set(count);
+            awaitWorkers(futures);
+        }
+    }
+
+    private static void awaitWorkers(List<Future<Void>> futures) {
+        for (Future<Void> future : futures) {
+            if (future.cancel(false)) {
+                continue;
+            }
+            try {
+                future.get();
+            }
+            catch (ExecutionException | CancellationException e) {
+                // the first failure has already been reported
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public SpanHighlighter() {}
+
+    /**
+     * Solr creates the highlighter with its core (if it has a constructor for one), so that its thread pools can be
+     * shut down when the core closes.
+     */
+    public SpanHighlighter(SolrCore core) {
+        core.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore core) {
+                close();
+            }
+
+            @Override
+            public void postClose(SolrCore core) {}
+        });
+    }
+
+    /**
+     * Shut down the thread pools. Any work already started finishes, and later requests are highlighted serially.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdown();
+        }
+    }
+
     @Override
     public void init(PluginInfo info) {
-    }    
+        SolrParams initParams = SolrParams.toSolrParams(info.initArgs);
+        maxThreads = initParams.getInt(CONF_THREADS, DEFAULT_THREADS);
+        indexPool = new MemoryIndexPool(initParams.getBool(CONF_REUSE_INDEXES, DEFAULT_REUSE_INDEXES));
+        defaultEngine = initParams.get(CONF_ENGINE, ENGINE_ANALYSIS);
+        QueryRewriter rewriter = new QueryRewriter(initParams.getInt(CONF_MAX_EXPANSIONS, QueryRewriter.DEFAULT_MAX_EXPANSIONS),
+                () -> metrics.expansionLimits.inc());
+        rewriteCache = new RewriteCache(initParams.getInt(CONF_REWRITE_CACHE_SIZE, DEFAULT_REWRITE_CACHE_SIZE), rewriter);
+        tokenCacheName = initParams.get(CONF_TOKEN_CACHE, DEFAULT_TOKEN_CACHE);
+        resultCacheName = initParams.get(CONF_RESULT_CACHE, DEFAULT_RESULT_CACHE);
+        maxPrefetch = initParams.getInt(CONF_PREFETCH, DEFAULT_PREFETCH);
+        if (maxThreads > 1) {
+            // idle threads time out. When the pool is overloaded, the requesting thread runs the work itself, as it
+            // would have to wait for it anyway.
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(maxThreads), r -> {
+                        Thread t = new MemoryIndexPool.IndexThread(r, "spanHighlighter-" + THREAD_COUNT.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        if (maxPrefetch > 0) {
+            // a loading thread for each request being highlighted, up to a limit, which times out when idle
+            int prefetchThreads = initParams.getInt(CONF_PREFETCH_THREADS, DEFAULT_PREFETCH_THREADS);
+            prefetchExecutor = new ThreadPoolExecutor(0, Math.max(1, prefetchThreads), 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), r -> {
+                        Thread t = new Thread(r, "spanHighlighter-prefetch-" + THREAD_COUNT.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+        LOG.info("span highlighter initialised with {} threads, prefetching {} documents, {}, {}", maxThreads,
+                maxPrefetch, indexPool, rewriteCache);
+    }
+    
+    @Override
+    public void initializeMetrics(SolrMetricManager manager, String registryName, String tag, String scope) {
+        registry = manager.registry(registryName);
+        metrics = new HighlightMetrics(manager, registryName, this, scope);
+    }
+    
+    @Override
+    public String getName() {
+        return SpanHighlighter.class.getName();
+    }
+    
+    @Override
+    public String getDescription() {
+        return "Highlighter using span queries";
+    }
+    
+    @Override
+    public Category getCategory() {
+        return Category.HIGHLIGHTER;
+    }
+    
+    @Override
+    public Set<String> getMetricNames() {
+        return metricNames;
+    }
+    
+    @Override
+    public MetricRegistry getMetricRegistry() {
+        return registry;
+    }
+    
+    /**
+     * @return the pool of the highlighting threads' memory indexes, so that its hit and miss counts can be inspected.
+     */
+    public MemoryIndexPool getIndexPool() {
+        return indexPool;
+    }
+    
+    /**
+     * @return the cache of rewritten queries, so that its hit, miss and eviction counts can be inspected.
+     */
+    public RewriteCache getRewriteCache() {
+        return rewriteCache;
+    }
+    
+    /**
+     * Loads just the stored fields to highlight, plus the unique key. If there is a known set of single-valued
+     * fields to highlight, it stops reading the document once it has passed each of them and the key.
+     */
+    static class HighlightFieldsVisitor extends DocumentStoredFieldVisitor {
+        private final String uniqueKey;
+        private final Predicate<String> highlightFields;
+        private final Set<String> unseenFields;
+        
+        /**
+         * @param singleValuedFields all the fields which may be highlighted, or null if they aren't known or may
+         *                           have more than one value
+         */
+        public HighlightFieldsVisitor(SchemaField uniqueKeyField, Predicate<String> highlightFields,
+                                      Set<String> singleValuedFields) {
+            this.uniqueKey = uniqueKeyField == null ? null : uniqueKeyField.getName();
+            this.highlightFields = highlightFields;
+            if (singleValuedFields == null || uniqueKey == null) {
+                this.unseenFields = null;
+            }
+            else {
+                this.unseenFields = new HashSet<>(singleValuedFields);
+                this.unseenFields.add(uniqueKey);
+            }
+        }
+        
+        @Override
+        public Status needsField(FieldInfo fieldInfo) throws IOException {
+            if (unseenFields != null && unseenFields.isEmpty()) {
+                // nothing else we need can follow
+                return Status.STOP;
+            }
+            if (unseenFields != null) {
+                unseenFields.remove(fieldInfo.name);
+            }
+            if (fieldInfo.name.equals(uniqueKey) || highlightFields.test(fieldInfo.name)) {
+                return Status.YES;
+            }
+            return Status.NO;
+        }
+    }
+    
+    /**
+     * The work to do for the i-th document of the result set.
+     */
+    @FunctionalInterface
+    interface DocWork {
+        void run(int i) throws IOException;
+    }
 }
@@ -0,0 +1,120 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.FilterSpans;
+import org.apache.lucene.search.spans.SpanCollector;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.Spans;
+
+/**
+ * A leaf of a highlighting task's query, tagged with the task. The leaves of all the tasks can then be run as a
+ * single query over a document, and each span still reports the task it belongs to when it is collected.
+ */
+public class TaskSpanQuery extends SpanQuery {
+
+    private final SpanQuery in;
+    private final HighlightingTask task;
+
+    public TaskSpanQuery(SpanQuery in, HighlightingTask task) {
+        this.in = in;
+        this.task = task;
+    }
+
+    @Override
+    public String getField() {
+        return in.getField();
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        SpanQuery rewritten = (SpanQuery) in.rewrite(reader);
+        if (rewritten == in) {
+            return this;
+        }
+        return new TaskSpanQuery(rewritten, task);
+    }
+
+    @Override
+    public SpanWeight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+        SpanWeight weight = in.createWeight(searcher, needsScores, boost);
+        Map<Term, TermContext> termContexts = new TreeMap<>();
+        weight.extractTermContexts(termContexts);
+        return new SpanWeight(this, searcher, needsScores ? termContexts : null, boost) {
+            @Override
+            public void extractTermContexts(Map<Term, TermContext> contexts) {
+                weight.extractTermContexts(contexts);
+            }
+
+            @Override
+            public Spans getSpans(LeafReaderContext ctx, Postings requiredPostings) throws IOException {
+                Spans spans = weight.getSpans(ctx, requiredPostings);
+                return spans == null ? null : new TaskSpans(spans, task);
+            }
+
+            @Override
+            public void extractTerms(Set<Term> terms) {
+                weight.extractTerms(terms);
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext ctx) {
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TaskSpanQuery that = (TaskSpanQuery) o;
+        return Objects.equals(in, that.in) && Objects.equals(task, that.task);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(in, task);
+    }
+
+    @Override
+    public String toString(String field) {
+        return "task" + task.priority + ":" + in.toString(field);
+    }
+
+    /**
+     * Spans which set the collector's task before collecting each span.
+     */
+    private static class TaskSpans extends FilterSpans {
+        private final HighlightingTask task;
+
+        TaskSpans(Spans in, HighlightingTask task) {
+            super(in);
+            this.task = task;
+        }
+
+        @Override
+        protected AcceptStatus accept(Spans candidate) {
+            return AcceptStatus.YES;
+        }
+
+        @Override
+        public void collect(SpanCollector collector) throws IOException {
+            if (collector instanceof OffsetCollector) {
+                ((OffsetCollector) collector).setTask(task);
+            }
+            in.collect(collector);
+        }
+    }
+}
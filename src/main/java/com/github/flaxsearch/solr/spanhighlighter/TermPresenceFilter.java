@@ -0,0 +1,174 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Works out which highlight fields of each document could possibly match, by looking up the terms of the
+ * highlighting queries in the main index, so that fields (and documents) without any of the terms need not be
+ * analysed at all. This matters when the query matches documents through fields that aren't highlighted.
+ * Only fields which are indexed in every segment can be checked; any others are assumed to match.
+ */
+public class TermPresenceFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TermPresenceFilter.class);
+
+    // a bit for each checked field, so there can be at most 64 of them
+    static final int MAX_FIELDS = 64;
+
+    private final Map<String, Integer> fieldBits;
+    private final long[] masks;
+    private final boolean uncheckedFields;
+
+    private TermPresenceFilter(Map<String, Integer> fieldBits, long[] masks, boolean uncheckedFields) {
+        this.fieldBits = fieldBits;
+        this.masks = masks;
+        this.uncheckedFields = uncheckedFields;
+    }
+
+    /**
+     * Check the highlight fields of the given documents.
+     * @param docIds the (top level) ids of the documents, in any order
+     * @return the filter, or null if the tasks' queries cannot be expanded into terms against the index.
+     */
+    public static TermPresenceFilter create(IndexSearcher searcher, List<HighlightingTask> tasks,
+                                            DocumentHighlighter highlighter, int[] docIds) throws IOException {
+        if (highlighter.queryFields == null) {
+            // the queries might match in fields we can't extract terms for
+            return null;
+        }
+        Set<Term> terms = new HashSet<>();
+        try {
+            for (HighlightingTask task : tasks) {
+                searcher.createNormalizedWeight(task.query, false).extractTerms(terms);
+            }
+        }
+        catch (BooleanQuery.TooManyClauses e) {
+            LOG.debug("too many terms to check in the index ({})", e.getMessage());
+            return null;
+        }
+
+        // group the terms by field, keeping the highlight fields which are indexed everywhere
+        Map<String, List<Term>> fieldTerms = new HashMap<>();
+        boolean uncheckedFields = false;
+        for (Term term : terms) {
+            if (highlighter.isHighlightField(term.field()) == false) {
+                continue;
+            }
+            List<Term> list = fieldTerms.get(term.field());
+            if (list == null) {
+                if (fieldTerms.size() == MAX_FIELDS || isIndexed(searcher, term.field()) == false) {
+                    uncheckedFields = true;
+                    continue;
+                }
+                list = new ArrayList<>();
+                fieldTerms.put(term.field(), list);
+            }
+            list.add(term);
+        }
+
+        Map<String, Integer> fieldBits = new HashMap<>();
+        for (String field : fieldTerms.keySet()) {
+            fieldBits.put(field, fieldBits.size());
+        }
+
+        // the positions of the documents in the DocList, in docid order
+        Integer[] order = new Integer[docIds.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> Integer.compare(docIds[x], docIds[y]));
+
+        long[] masks = new long[docIds.length];
+        int next = 0;
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            if (next == order.length) {
+                break;
+            }
+            int leafEnd = leaf.docBase + leaf.reader().maxDoc();
+            int from = next;
+            while (next < order.length && docIds[order[next]] < leafEnd) {
+                next++;
+            }
+            if (from == next) {
+                continue;
+            }
+
+            for (Map.Entry<String, List<Term>> entry : fieldTerms.entrySet()) {
+                Terms leafTerms = leaf.reader().terms(entry.getKey());
+                if (leafTerms == null) {
+                    continue;
+                }
+                long bit = 1L << fieldBits.get(entry.getKey());
+                TermsEnum termsEnum = leafTerms.iterator();
+                PostingsEnum postings = null;
+                for (Term term : entry.getValue()) {
+                    if (termsEnum.seekExact(term.bytes()) == false) {
+                        continue;
+                    }
+                    postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                    for (int i = from; i < next; i++) {
+                        int target = docIds[order[i]] - leaf.docBase;
+                        int doc = postings.docID();
+                        if (doc < target) {
+                            doc = postings.advance(target);
+                        }
+                        if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+                            break;
+                        }
+                        if (doc == target) {
+                            masks[order[i]] |= bit;
+                        }
+                    }
+                }
+            }
+        }
+        return new TermPresenceFilter(fieldBits, masks, uncheckedFields);
+    }
+
+    private static boolean isIndexed(IndexSearcher searcher, String field) {
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+            if (info != null && info.getIndexOptions() == IndexOptions.NONE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param index the position of the document in the DocList
+     * @return false if the field of the document certainly contains none of the queries' terms.
+     */
+    public boolean mayMatch(int index, String field) {
+        Integer bit = fieldBits.get(field);
+        return bit == null || (masks[index] & (1L << bit)) != 0;
+    }
+
+    /**
+     * @param index the position of the document in the DocList
+     * @return false if none of the document's highlight fields can match, so it needn't be highlighted at all.
+     */
+    public boolean mayMatchAny(int index) {
+        return uncheckedFields || masks[index] != 0;
+    }
+}
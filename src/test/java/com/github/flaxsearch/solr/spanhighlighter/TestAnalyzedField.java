@@ -0,0 +1,149 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.BytesTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.search.SolrCache;
+
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeDoc;
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeSchema;
+import static org.assertj.core.api.Assertions.*;
+
+public class TestAnalyzedField {
+
+    private static final QueryParser PARSER = new QueryParser("text", new StandardAnalyzer());
+
+    /**
+     * Binary terms, as a collation analyzer would produce, with a multi-position token between them.
+     */
+    private static class BinaryStream extends TokenStream {
+        private final BytesTermAttribute termAtt = addAttribute(BytesTermAttribute.class);
+        private final PositionLengthAttribute posLengthAtt = addAttribute(PositionLengthAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final PayloadAttribute payloadAtt;
+        private final byte[][] terms = { { (byte) 0xff, 0x01 }, { 0x00 }, { (byte) 0xc3, 0x28, 0x7f } };
+        private int next;
+
+        BinaryStream(boolean payloads) {
+            payloadAtt = payloads ? addAttribute(PayloadAttribute.class) : null;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            next = 0;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next == terms.length) {
+                return false;
+            }
+            clearAttributes();
+            termAtt.setBytesRef(new BytesRef(terms[next]));
+            posLengthAtt.setPositionLength(next == 1 ? 2 : 1);
+            offsetAtt.setOffset(next * 4, next * 4 + 3);
+            if (payloadAtt != null) {
+                payloadAtt.setPayload(new BytesRef(new byte[] { (byte) next }));
+            }
+            next++;
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            offsetAtt.setOffset(11, 11);
+        }
+    }
+
+    private static List<String> consume(TokenStream stream) throws IOException {
+        TermToBytesRefAttribute termAtt = stream.addAttribute(TermToBytesRefAttribute.class);
+        PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+        PositionLengthAttribute posLengthAtt = stream.addAttribute(PositionLengthAttribute.class);
+        OffsetAttribute offsetAtt = stream.addAttribute(OffsetAttribute.class);
+        List<String> tokens = new ArrayList<>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            tokens.add(String.format("%s+%d/%d@%d-%d", termAtt.getBytesRef(), posIncAtt.getPositionIncrement(),
+                    posLengthAtt.getPositionLength(), offsetAtt.startOffset(), offsetAtt.endOffset()));
+        }
+        stream.end();
+        tokens.add("end@" + offsetAtt.endOffset());
+        stream.close();
+        return tokens;
+    }
+
+    @Test
+    public void testReplayBinaryTerms() throws IOException {
+        AnalyzedField.Recorder recorder = new AnalyzedField.Recorder();
+        List<String> analysed = consume(recorder.record(new BinaryStream(false), 11));
+        AnalyzedField field = recorder.build(1);
+        assertThat(field).isNotNull();
+        assertThat(field.length()).isEqualTo(11);
+
+        // the replayed terms are the indexed bytes, not a re-encoding of their characters
+        List<String> replayed = consume(field.replay(0));
+        assertThat(replayed).isEqualTo(analysed);
+        assertThat(replayed).contains("[ff 1]+1/1@0-3", "[0]+1/2@4-7");
+    }
+
+    @Test
+    public void testPayloadsNotCached() throws IOException {
+        AnalyzedField.Recorder recorder = new AnalyzedField.Recorder();
+        consume(recorder.record(new BinaryStream(true), 11));
+        assertThat(recorder.build(1)).isNull();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testTokenCache() throws ParseException {
+        Map<AnalyzedField.Key, AnalyzedField> entries = new HashMap<>();
+        SolrCache<AnalyzedField.Key, AnalyzedField> cache = mock(SolrCache.class);
+        when(cache.get(any())).thenAnswer(x -> entries.get(x.getArgument(0)));
+        when(cache.put(any(), any())).thenAnswer(x -> entries.put(x.getArgument(0), x.getArgument(1)));
+
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(PARSER.parse("\"tree spider\" banana"));
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]"));
+        DocumentHighlighter highlighter = new DocumentHighlighter(makeSchema(), tasks, new String[] { "text" });
+        highlighter.setTokenCache(cache);
+        HighlightMetrics metrics = new HighlightMetrics();
+        highlighter.setMetrics(metrics);
+
+        Document doc = makeDoc("text", "Let me introduce you to my friend under the tree",
+                               "text", "Spider and me, and a banana.");
+        int length = doc.getValues("text")[0].length() + doc.getValues("text")[1].length();
+        Map<String, List<String>> analysed = highlighter.highlightDoc(null, 7, doc);
+        assertThat(entries).containsOnlyKeys(new AnalyzedField.Key(7, "text"));
+        assertThat(entries.get(new AnalyzedField.Key(7, "text")).size()).isEqualTo(2);
+        assertThat(metrics.analyzedChars.getCount()).isEqualTo(length);
+
+        // the second time round, the field is replayed from the cache, and counted the same
+        Map<String, List<String>> replayed = highlighter.highlightDoc(null, 7, doc);
+        assertThat(replayed).isEqualTo(analysed);
+        assertThat(replayed.get("text")).containsExactly("Let me introduce you to my friend under the [tree]",
+                "[Spider] and me, and a [banana].");
+        verify(cache, times(1)).put(any(), any());
+        assertThat(metrics.analyzedChars.getCount()).isEqualTo(2 * length);
+    }
+}
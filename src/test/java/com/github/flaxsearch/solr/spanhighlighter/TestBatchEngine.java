@@ -0,0 +1,88 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeDoc;
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeSchema;
+import static org.assertj.core.api.Assertions.*;
+
+public class TestBatchEngine {
+
+    private static final QueryParser PARSER = new QueryParser("text", new StandardAnalyzer());
+
+    private static DocumentHighlighter makeHighlighter(String query) throws ParseException {
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(PARSER.parse(query));
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]"));
+        return new DocumentHighlighter(makeSchema(), tasks, new String[] { "text", "title" });
+    }
+
+    @Test
+    public void testBatchEngine() throws IOException, ParseException {
+        DocumentHighlighter highlighter = makeHighlighter("banana over \"my friend\"");
+        Document[] docs = {
+                makeDoc("text", "my friend the banana", "text", "over there?"),
+                null,
+                makeDoc("text", "no fruit here", "text", "over there?") };
+        Map<Integer, OffsetCollector> offsets = BatchEngine.collect(highlighter, new int[] { 7, 3, 5 }, docs, HighlightBudget.UNLIMITED);
+        assertThat(offsets.keySet()).containsOnly(3, 5, 7);
+        assertThat(highlighter.render(docs[0], offsets.get(7))).isEqualTo(highlighter.highlightDoc(docs[0]));
+        assertThat(highlighter.render(docs[2], offsets.get(5)).get("text"))
+            .containsExactly("[over] there?");
+        assertThat(offsets.get(3).size()).isEqualTo(0);
+
+        // the request's chars run out after the first document, but what was analysed is still highlighted
+        HighlightBudget budget = new HighlightBudget(-1, 25, -1);
+        offsets = BatchEngine.collect(highlighter, new int[] { 7, 3, 5 }, docs, budget);
+        assertThat(budget.wasExhausted()).isTrue();
+        assertThat(offsets.get(7).isTruncated()).isFalse();
+        assertThat(highlighter.render(docs[0], offsets.get(7))).isEqualTo(highlighter.highlightDoc(docs[0]));
+        assertThat(offsets.get(5).isTruncated()).isTrue();
+        assertThat(offsets.get(5).size()).isEqualTo(0);
+
+        // the second value is cut short, and the rest are left out
+        highlighter.setMaxAnalyzedChars(22, Integer.MAX_VALUE);
+        offsets = BatchEngine.collect(highlighter, new int[] { 7 }, new Document[] { docs[0] }, HighlightBudget.UNLIMITED);
+        assertThat(offsets.get(7).isTruncated()).isTrue();
+        assertThat(highlighter.render(docs[0], offsets.get(7)).get("text"))
+            .containsExactly("[my] [friend] the [banana]");
+    }
+
+    @Test
+    public void testMatchesAnalysis() throws IOException, ParseException {
+        // "there my" only matches across the values of a field
+        DocumentHighlighter highlighter = makeHighlighter("banana title:banana over \"my friend\" \"there my\"");
+        Document[] docs = {
+                makeDoc("text", "my friend the banana", "text", "over there", "text", "my friend is over there"),
+                makeDoc("title", "banana", "text", "bananas and a banana. my", "title", "my banana",
+                        "text", "friend over there"),
+                makeDoc("text", "banana"),
+                makeDoc("title", "no fruit", "text", "nothing over here") };
+        int[] docIds = { 4, 1, 9, 2 };
+
+        // no limits; a value cut short; a token straddling the limit; values left out of the document
+        int[][] limits = { { Integer.MAX_VALUE, Integer.MAX_VALUE }, { 25, Integer.MAX_VALUE },
+                { 18, Integer.MAX_VALUE }, { Integer.MAX_VALUE, 33 } };
+        for (int[] limit : limits) {
+            highlighter.setMaxAnalyzedChars(limit[0], limit[1]);
+            Map<Integer, OffsetCollector> offsets = BatchEngine.collect(highlighter, docIds, docs, HighlightBudget.UNLIMITED);
+            for (int i = 0; i < docs.length; i++) {
+                OffsetCollector analysed = highlighter.collectOffsets(null, -1, docs[i]);
+                String description = String.format("doc %d, limits %s", i, Arrays.toString(limit));
+                assertThat(offsets.get(docIds[i]).isTruncated()).as(description).isEqualTo(analysed.isTruncated());
+                assertThat(highlighter.render(docs[i], offsets.get(docIds[i]))).as(description)
+                        .isEqualTo(highlighter.render(docs[i], analysed));
+            }
+        }
+    }
+}
@@ -3,38 +3,43 @@ package com.github.flaxsearch.solr.spanhighlighter;
 import org.junit.*;
 import static org.mockito.Mockito.*;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
 
 import static org.assertj.core.api.Assertions.*;
 
 public class TestDocumentHighlighter {
 
-    private static FieldType fieldType;
     private static IndexSchema schema;
     private static QueryParser PARSER = new QueryParser("text", new StandardAnalyzer());
     
     @BeforeClass
     public static void setup() {
-        fieldType = mock(FieldType.class);
-        when(fieldType.getIndexAnalyzer()).thenReturn(new StandardAnalyzer());
-        
-        schema = mock(IndexSchema.class);
-        when(schema.getFieldTypeByName(any())).thenReturn(fieldType);
+        schema = makeSchema();
     }
     
     @Test
@@ -172,6 +177,113 @@ public class TestDocumentHighlighter {
         );
     }
 
+    @Test
+    public void testSparseMultivaluedField() {
+        Query query = new TermQuery(new Term("text", "banana"));
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(query);        
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]")); 
+        
+        Document doc = makeDoc("text", "Apple",
+                               "text", "Banana",
+                               "text", "Cherry pie",
+                               "text", "banana, BANANA and more banana",
+                               "text", "Damson");
+
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+
+        Map<String, List<String>> results = highlighter.highlightDoc(doc);
+        assertThat(results.get("text")).containsExactly(
+                "[Banana]",
+                "[banana], [BANANA] and more [banana]"
+        );
+    }
+
+    @Test
+    public void testFragments() {
+        Query query = new TermQuery(new Term("text", "banana"));
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(query);        
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]")); 
+        
+        Document doc = makeDoc("text", "The first sentence has nothing. The banana is yellow and ripe. "
+                + "Another sentence without fruit follows here. Finally, a banana split is served.",
+                               "text", "No fruit in this one.",
+                               "text", "A banana, another banana and more bananas in a rather long sentence.");
+
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+        highlighter.setFragmenter(new Fragmenter(40, 2, Fragmenter.BOUNDARY_SENTENCE));
+        assertThat(highlighter.highlightDoc(doc).get("text")).containsExactly(
+                "The [banana] is yellow and ripe.",
+                "A [banana], another [banana] and more");
+        
+        highlighter.setFragmenter(new Fragmenter(40, 1, Fragmenter.BOUNDARY_SENTENCE));
+        assertThat(highlighter.highlightDoc(doc).get("text")).containsExactly(
+                "A [banana], another [banana] and more");
+    }
+
+    @Test
+    public void testBudget() {
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(new TermQuery(new Term("text", "banana")));
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]"));
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+        HighlightBudget budget = new HighlightBudget(-1, 10, -1);
+        highlighter.setBudget(budget);
+
+        Document doc = makeDoc("text", "banana one banana two", "text", "banana three");
+        OffsetCollector collector = highlighter.collectOffsets(null, -1, doc);
+        assertThat(budget.wasExhausted()).isTrue();
+        assertThat(collector.isTruncated()).isTrue();
+        assertThat(highlighter.render(doc, collector).get("text")).containsExactly("[banana] one [banana] two");
+
+        // with the budget spent, no more text is analysed
+        Document next = makeDoc("text", "banana four");
+        assertThat(highlighter.highlightDoc(next)).isEmpty();
+    }
+
+    @Test
+    public void testOffsetsFormat() {
+        Query query = new TermQuery(new Term("text", "banana"));
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(query);
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(2, rewritten, "[", "]"));
+
+        Document doc = makeDoc("text", "no fruit here",
+                               "text", "my banana and another banana");
+
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+        Map<String, List<Integer>> results = highlighter.renderOffsets(doc, highlighter.collectOffsets(null, -1, doc));
+        assertThat(results.keySet()).containsExactly("text");
+        assertThat(results.get("text")).containsExactly(1, 3, 9, 2, 1, 22, 28, 2);
+    }
+
+    @Test
+    public void testMaxAnalyzedChars() {
+        Query query = new TermQuery(new Term("text", "banana"));
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(query);
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]"));
+
+        Document doc = makeDoc("text", "banana one banana two banana three",
+                               "text", "banana again");
+
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+        highlighter.setMaxAnalyzedChars(18, Integer.MAX_VALUE);
+        OffsetCollector collector = highlighter.collectOffsets(null, -1, doc);
+        assertThat(collector.isTruncated()).isTrue();
+        assertThat(highlighter.render(doc, collector).get("text")).containsExactly(
+                "[banana] one [banana] two banana three");
+
+        // a token which starts within the limit but ends beyond it is left unhighlighted
+        highlighter.setMaxAnalyzedChars(15, Integer.MAX_VALUE);
+        collector = highlighter.collectOffsets(null, -1, doc);
+        assertThat(collector.isTruncated()).isTrue();
+        assertThat(highlighter.render(doc, collector).get("text")).containsExactly(
+                "[banana] one banana two banana three");
+
+        highlighter.setMaxAnalyzedChars(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        collector = highlighter.collectOffsets(null, -1, doc);
+        assertThat(collector.isTruncated()).isFalse();
+        assertThat(highlighter.render(doc, collector).get("text")).containsExactly(
+                "[banana] one [banana] two [banana] three", "[banana] again");
+    }
+
     @Test
     public void testMultiFields() throws ParseException {
         Query query = PARSER.parse("f1:foo f2:bar f3:wombat");
@@ -193,6 +305,151 @@ public class TestDocumentHighlighter {
         assertThat(results.get("f4")).isNull();;
     }
 
+    @Test
+    public void testQueryFields() throws ParseException {
+        Query query = PARSER.parse("f1:foo (f2:bar OR f2:ba*) \"f3 wombat\"");
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(query);
+        assertThat(QueryRewriter.INSTANCE.extractFields(rewritten)).containsOnly("f1", "f2", "text");
+
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]"));
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "*" });
+        assertThat(highlighter.isHighlightField("f1")).isTrue();
+        assertThat(highlighter.isHighlightField("f3")).isFalse();
+
+        // a query we can't rewrite might match in any field
+        assertThat(QueryRewriter.INSTANCE.extractFields(new MatchAllDocsQuery())).isNull();
+    }
+
+    @Test
+    public void testMultipleTasks() throws ParseException {
+        List<HighlightingTask> tasks = Arrays.asList(
+                new HighlightingTask(0, QueryRewriter.INSTANCE.rewrite(PARSER.parse("banana")), "[", "]"),
+                new HighlightingTask(1, QueryRewriter.INSTANCE.rewrite(PARSER.parse("\"my banana\"")), "{", "}"),
+                new HighlightingTask(2, QueryRewriter.INSTANCE.rewrite(PARSER.parse("over")), "<", ">"));
+        
+        Document doc = makeDoc("text", "what is my banana doing over there?");
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+
+        assertThat(highlighter.combinedQuery).isNotNull();
+
+        Map<String, List<String>> results = highlighter.highlightDoc(doc);
+        assertThat(results.get("text")).containsExactly("what is {my} [banana] doing <over> there?");
+    }
+
+    @Test
+    public void testDuplicateTaskQueries() {
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(new TermQuery(new Term("text", "banana")));
+        List<HighlightingTask> tasks = Arrays.asList(
+                new HighlightingTask(1, rewritten, "{", "}"),
+                new HighlightingTask(0, QueryRewriter.INSTANCE.rewrite(new TermQuery(new Term("text", "banana"))), "[", "]"));
+        assertThat(DocumentHighlighter.distinctTasks(tasks)).containsExactly(tasks.get(1));
+        
+        Document doc = makeDoc("text", "what is my banana doing over there?");
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+        assertThat(highlighter.highlightDoc(doc).get("text")).containsExactly("what is my [banana] doing over there?");
+    }
+
+    @Test
+    public void testMergeOffsets() {
+        OffsetCollector collector = new OffsetCollector();
+        collector.setTask(new HighlightingTask(1, null, "{", "}"));
+        collector.setTask(new HighlightingTask(0, null, "[", "]"));
+        
+        OffsetCollector.FieldOffsets offsets = collector.new FieldOffsets();
+        offsets.add(10, 12, 0);
+        offsets.add(30, 35, 0);
+        offsets.add(10, 20, 0);     // same start as an earlier offset, but longer
+        offsets.add(0, 4, 1);
+        offsets.add(3, 6, 0);       // overlaps an offset from the higher priority task
+        offsets.sortAndMerge();
+        
+        assertThat(offsets.size).isEqualTo(3);
+        assertThat(Arrays.copyOf(offsets.starts, offsets.size)).containsExactly(0, 10, 30);
+        assertThat(Arrays.copyOf(offsets.ends, offsets.size)).containsExactly(6, 20, 35);
+        assertThat(Arrays.copyOf(offsets.taskIds, offsets.size)).containsExactly(1, 0, 0);
+    }
+
+    @Test
+    public void testMetrics() {
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(new TermQuery(new Term("text", "banana")));
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]"));
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+        HighlightMetrics metrics = new HighlightMetrics();
+        highlighter.setMetrics(metrics);
+
+        highlighter.highlightDoc(makeDoc("text", "what is my banana doing", "text", "over there?"));
+        assertThat(metrics.analyzedChars.getCount()).isEqualTo(34);
+        assertThat(metrics.analysis.getCount()).isEqualTo(1);
+        assertThat(metrics.collection.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testTermVectorField() throws IOException {
+        IndexSchema schema = makeSchema();
+        FieldType fieldType = schema.getFieldOrNull("text").getType();
+        SchemaField tvField = mock(SchemaField.class);
+        when(tvField.getType()).thenReturn(fieldType);
+        when(tvField.storeTermPositions()).thenReturn(true);
+        when(tvField.storeTermOffsets()).thenReturn(true);
+        when(schema.getFieldOrNull("tv")).thenReturn(tvField);
+        
+        org.apache.lucene.document.FieldType tvType = new org.apache.lucene.document.FieldType(TextField.TYPE_STORED);
+        tvType.setStoreTermVectors(true);
+        tvType.setStoreTermVectorPositions(true);
+        tvType.setStoreTermVectorOffsets(true);
+        Document doc = new Document();
+        doc.add(new Field("tv", "What is my Banana doing", tvType));
+        doc.add(new Field("tv", "over there?", tvType));
+        
+        // index with a case-sensitive analyzer, so "Banana" can only match if the term vector is used
+        Directory dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            writer.addDocument(doc);
+        }
+        
+        try (IndexReader reader = DirectoryReader.open(dir)) {
+            Query rewritten = QueryRewriter.INSTANCE.rewrite(new TermQuery(new Term("tv", "Banana")));
+            List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]")); 
+            DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "tv" });
+            
+            HighlightMetrics metrics = new HighlightMetrics();
+            HighlightBudget budget = new HighlightBudget(-1, 30, -1);
+            highlighter.setMetrics(metrics);
+            highlighter.setBudget(budget);
+            Map<String, List<String>> results = highlighter.highlightDoc(reader, 0, reader.document(0));
+            assertThat(results.keySet()).containsExactly("tv");
+            assertThat(results.get("tv")).containsExactly("What is my [Banana] doing");
+
+            // the text read from the term vector counts against the limits, as analysed text does
+            assertThat(metrics.analyzedChars.getCount()).isEqualTo(35);
+            assertThat(budget.wasExhausted()).isTrue();
+
+            highlighter.setMetrics(metrics = new HighlightMetrics());
+            highlighter.setBudget(HighlightBudget.UNLIMITED);
+            highlighter.setMaxAnalyzedChars(20, Integer.MAX_VALUE);
+            results = highlighter.highlightDoc(reader, 0, reader.document(0));
+            assertThat(results.get("tv")).containsExactly("What is my [Banana] doing");
+            assertThat(metrics.analyzedChars.getCount()).isEqualTo(20);
+
+            // nor does a token read from the term vector extend past the limit
+            highlighter.setMaxAnalyzedChars(15, Integer.MAX_VALUE);
+            assertThat(highlighter.highlightDoc(reader, 0, reader.document(0))).isEmpty();
+        }
+    }
+
+    /**
+     * @return a new schema in which every field is analysed with the StandardAnalyzer.
+     */
+    public static IndexSchema makeSchema() {
+        FieldType fieldType = mock(FieldType.class);
+        when(fieldType.getIndexAnalyzer()).thenReturn(new StandardAnalyzer());
+        SchemaField field = mock(SchemaField.class);
+        when(field.getType()).thenReturn(fieldType);
+        IndexSchema schema = mock(IndexSchema.class);
+        when(schema.getFieldOrNull(any())).thenReturn(field);
+        return schema;
+    }
+
     public static Document makeDoc(String... fields) {
         assert fields.length % 2 == 0;
         Document document = new Document();
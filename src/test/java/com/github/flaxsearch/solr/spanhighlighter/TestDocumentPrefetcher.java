@@ -0,0 +1,65 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class TestDocumentPrefetcher {
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setup() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDocumentsInOrder() throws IOException {
+        try (DocumentPrefetcher prefetcher = new DocumentPrefetcher(executor, new int[] { 0, 2, 3, 5 }, 1,
+                i -> TestDocumentHighlighter.makeDoc("id", Integer.toString(i)))) {
+            assertThat(prefetcher.take(0).get("id")).isEqualTo("0");
+            assertThat(prefetcher.take(3).get("id")).isEqualTo("3");     // 2 is skipped
+            assertThat(prefetcher.take(5).get("id")).isEqualTo("5");
+        }
+    }
+
+    @Test
+    public void testLoadFailure() throws IOException {
+        try (DocumentPrefetcher prefetcher = new DocumentPrefetcher(executor, new int[] { 0, 1, 2 }, 2, i -> {
+            if (i == 1) {
+                throw new IOException("no such document");
+            }
+            return TestDocumentHighlighter.makeDoc("id", Integer.toString(i));
+        })) {
+            assertThat(prefetcher.take(0).get("id")).isEqualTo("0");
+            assertThatThrownBy(() -> prefetcher.take(1)).isInstanceOf(IOException.class).hasMessage("no such document");
+        }
+    }
+
+    @Test
+    public void testLoadError() throws IOException {
+        // an Error must reach the taker too, rather than leaving it waiting
+        try (DocumentPrefetcher prefetcher = new DocumentPrefetcher(executor, new int[] { 0, 1 }, 1, i -> {
+            throw new AssertionError("broken loader");
+        })) {
+            assertThatThrownBy(() -> prefetcher.take(0)).isInstanceOf(AssertionError.class).hasMessage("broken loader");
+        }
+    }
+
+    @Test
+    public void testCloseBeforeTaking() throws IOException {
+        // the loader must stop even though its queue is full
+        DocumentPrefetcher prefetcher = new DocumentPrefetcher(executor, new int[] { 0, 1, 2, 3 }, 1,
+                i -> TestDocumentHighlighter.makeDoc("id", Integer.toString(i)));
+        prefetcher.close();
+    }
+}
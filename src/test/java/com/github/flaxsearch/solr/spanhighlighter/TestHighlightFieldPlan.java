@@ -0,0 +1,76 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.ref.WeakReference;
+
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeSchema;
+import static org.assertj.core.api.Assertions.*;
+
+public class TestHighlightFieldPlan {
+
+    @Test
+    public void testFieldPlan() {
+        IndexSchema schema = makeSchema();
+        SchemaField unanalysed = mock(SchemaField.class);
+        when(schema.getFieldOrNull("unanalysed")).thenReturn(unanalysed);
+        when(schema.getFieldOrNull("unknown")).thenReturn(null);
+
+        HighlightFieldPlan plan = HighlightFieldPlan.compile(schema, new String[] { "title", "body_*", "", "unanalysed", "unknown" });
+        assertThat(plan.get(schema, "title").analyzer).isNotNull();
+        assertThat(plan.get(schema, "body_en").name).isEqualTo("body_en");
+        assertThat(plan.get(schema, "body_en")).isSameAs(plan.get(schema, "body_en"));
+        assertThat(plan.get(schema, "unanalysed").analyzer).isNull();
+        assertThat(plan.get(schema, "unknown")).isNull();
+        assertThat(plan.get(schema, "subtitle")).isNull();
+        assertThat(plan.get(schema, "")).isNull();
+
+        // once the plan is full, other names are still resolved, but not remembered
+        for (int i = 0; i < HighlightFieldPlan.MAX_RESOLVED_FIELDS; i++) {
+            plan.get(schema, "other_" + i);
+        }
+        assertThat(plan.get(schema, "body_de").name).isEqualTo("body_de");
+        assertThat(plan.get(schema, "body_de")).isNotSameAs(plan.get(schema, "body_de"));
+        assertThat(plan.get(schema, "body_en")).isSameAs(plan.get(schema, "body_en"));
+    }
+
+    @Test
+    public void testSingleValuedFields() {
+        IndexSchema schema = makeSchema();
+        SchemaField multiValued = mock(SchemaField.class);
+        when(multiValued.multiValued()).thenReturn(true);
+        when(schema.getFieldOrNull("tags")).thenReturn(multiValued);
+        when(schema.getFieldOrNull("unknown")).thenReturn(null);
+
+        assertThat(HighlightFieldPlan.compile(schema, "title,subtitle unknown").getSingleValuedFields())
+                .containsOnly("title", "subtitle");
+        assertThat(HighlightFieldPlan.compile(schema, "title tags").getSingleValuedFields()).isNull();
+        assertThat(HighlightFieldPlan.compile(schema, "title body_*").getSingleValuedFields()).isNull();
+    }
+
+    @Test
+    public void testSchemaNotRetained() throws InterruptedException {
+        // the cached plans must not keep a replaced schema alive
+        SpanHighlighter highlighter = new SpanHighlighter();
+        WeakReference<IndexSchema> ref = cachePlan(highlighter);
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertThat(ref.get()).isNull();
+    }
+
+    private static WeakReference<IndexSchema> cachePlan(SpanHighlighter highlighter) {
+        IndexSchema schema = makeSchema();
+        HighlightFieldPlan plan = highlighter.getFieldPlan(schema, "title body_*");
+        assertThat(plan.get(schema, "body_en")).isNotNull();
+        assertThat(highlighter.getFieldPlan(schema, "title body_*")).isSameAs(plan);
+        // Mockito remembers the last call on a mock, for stubbing it; make that some other mock
+        mock(IndexSchema.class).getFieldOrNull("title");
+        return new WeakReference<>(schema);
+    }
+}
@@ -0,0 +1,155 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.mockito.ArgumentCaptor;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class TestHighlightResultRegenerator {
+
+    private static Directory dir;
+    private static IndexReader reader;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            String[][] docs = { { "a", "an apple a day" }, { "b", "my banana is yellow" } };
+            for (String[] fields : docs) {
+                Document doc = new Document();
+                doc.add(new StringField("id", fields[0], Field.Store.YES));
+                doc.add(new TextField("text", fields[1], Field.Store.YES));
+                doc.add(new TextField("other", "banana " + fields[1], Field.Store.YES));
+                writer.addDocument(doc);
+            }
+        }
+        reader = DirectoryReader.open(dir);
+    }
+
+    @AfterClass
+    public static void teardown() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    /**
+     * A new searcher over the test index, in which document "b" has id 1 and "gone" has been deleted.
+     */
+    private static SolrIndexSearcher makeSearcher() throws IOException {
+        FieldType textType = mock(FieldType.class);
+        when(textType.getIndexAnalyzer()).thenReturn(new StandardAnalyzer());
+        SchemaField textField = mock(SchemaField.class);
+        when(textField.getType()).thenReturn(textType);
+        SchemaField idField = mock(SchemaField.class);
+        when(idField.getName()).thenReturn("id");
+        FieldType idType = mock(FieldType.class);
+        doAnswer(x -> {
+            x.<BytesRefBuilder>getArgument(1).copyChars(x.<CharSequence>getArgument(0));
+            return null;
+        }).when(idType).readableToIndexed(any(CharSequence.class), any(BytesRefBuilder.class));
+        when(idField.getType()).thenReturn(idType);
+
+        IndexSchema schema = mock(IndexSchema.class);
+        when(schema.getFieldOrNull(any())).thenReturn(textField);
+        when(schema.getUniqueKeyField()).thenReturn(idField);
+        when(schema.printableUniqueKey(any())).thenAnswer(x -> x.<Document>getArgument(0).get("id"));
+
+        SolrIndexSearcher searcher = mock(SolrIndexSearcher.class);
+        when(searcher.getSchema()).thenReturn(schema);
+        when(searcher.getFirstMatch(any())).thenReturn(-1);
+        when(searcher.getFirstMatch(new Term("id", "b"))).thenReturn(1);
+        doAnswer(x -> {
+            reader.document(x.getArgument(0), x.<StoredFieldVisitor>getArgument(1));
+            return null;
+        }).when(searcher).doc(anyInt(), any(StoredFieldVisitor.class));
+        return searcher;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRegenerate() throws IOException {
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0,
+                QueryRewriter.INSTANCE.rewrite(new TermQuery(new Term("text", "banana"))), "[", "]"));
+        SolrIndexSearcher searcher = makeSearcher();
+        SolrCache<HighlightResult.Key, HighlightResult> newCache = mock(SolrCache.class);
+        HighlightResultRegenerator regenerator = new HighlightResultRegenerator();
+
+        for (String engine : new String[] { SpanHighlighter.ENGINE_ANALYSIS, SpanHighlighter.ENGINE_BATCH }) {
+            reset(newCache);
+            HighlightSpec spec = new HighlightSpec(tasks, "text", 0, 1, Fragmenter.BOUNDARY_SENTENCE,
+                    Integer.MAX_VALUE, Integer.MAX_VALUE, false, engine);
+            HighlightResult old = new HighlightResult("b", makeHighlights("stale"), false);
+            assertThat(regenerator.regenerateItem(searcher, newCache, null, new HighlightResult.Key(spec, 7), old)).isTrue();
+
+            // the document is highlighted again, under its id in the new searcher
+            ArgumentCaptor<HighlightResult> result = ArgumentCaptor.forClass(HighlightResult.class);
+            verify(newCache).put(eq(new HighlightResult.Key(spec, 1)), result.capture());
+            assertThat(result.getValue().uniqueKey).as(engine).isEqualTo("b");
+            assertThat(result.getValue().truncated).as(engine).isFalse();
+            assertThat((Map<String, List<String>>) result.getValue().highlights).as(engine)
+                    .containsOnlyKeys("text")
+                    .containsEntry("text", Arrays.asList("my [banana] is yellow"));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDeletedDocument() throws IOException {
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0,
+                QueryRewriter.INSTANCE.rewrite(new TermQuery(new Term("text", "banana"))), "[", "]"));
+        HighlightSpec spec = new HighlightSpec(tasks, "text", 0, 1, Fragmenter.BOUNDARY_SENTENCE,
+                Integer.MAX_VALUE, Integer.MAX_VALUE, false, SpanHighlighter.ENGINE_ANALYSIS);
+        SolrCache<HighlightResult.Key, HighlightResult> newCache = mock(SolrCache.class);
+        HighlightResult old = new HighlightResult("gone", makeHighlights("stale"), false);
+        assertThat(new HighlightResultRegenerator().regenerateItem(makeSearcher(), newCache, null,
+                new HighlightResult.Key(spec, 7), old)).isTrue();
+        verify(newCache, never()).put(any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCachedHighlightsUnmodifiable() {
+        Map<String, List<String>> highlights = makeHighlights("my [banana]");
+        HighlightResult result = new HighlightResult("b", highlights, false);
+        highlights.get("text").add("changed after caching");
+        Map<String, List<String>> cached = (Map<String, List<String>>) result.highlights;
+        assertThat(cached.get("text")).containsExactly("my [banana]");
+        assertThatThrownBy(() -> cached.get("text").add("changed by a response")).isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> cached.remove("text")).isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    private static Map<String, List<String>> makeHighlights(String text) {
+        Map<String, List<String>> highlights = new HashMap<>();
+        highlights.put("text", new ArrayList<>(Arrays.asList(text)));
+        return highlights;
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.solr.schema.IndexSchema;
+
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeDoc;
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeSchema;
+import static org.assertj.core.api.Assertions.*;
+
+public class TestHighlightSpec {
+
+    private static final QueryParser PARSER = new QueryParser("text", new StandardAnalyzer());
+
+    private final IndexSchema schema = makeSchema();
+
+    @Test
+    public void testHighlightSpec() throws ParseException {
+        HighlightSpec spec = new HighlightSpec(Arrays.asList(new HighlightingTask(0,
+                QueryRewriter.INSTANCE.rewrite(PARSER.parse("banana \"my friend\"")), "[", "]")),
+                "text", 40, 2, Fragmenter.BOUNDARY_SENTENCE, 1000, Integer.MAX_VALUE, false, SpanHighlighter.ENGINE_ANALYSIS);
+        HighlightSpec same = new HighlightSpec(Arrays.asList(new HighlightingTask(0,
+                QueryRewriter.INSTANCE.rewrite(PARSER.parse("banana \"my friend\"")), "[", "]")),
+                "text", 40, 2, Fragmenter.BOUNDARY_SENTENCE, 1000, Integer.MAX_VALUE, false, SpanHighlighter.ENGINE_ANALYSIS);
+        HighlightSpec offsets = new HighlightSpec(spec.tasks, "text", 40, 2, Fragmenter.BOUNDARY_SENTENCE,
+                1000, Integer.MAX_VALUE, true, SpanHighlighter.ENGINE_ANALYSIS);
+        HighlightSpec postings = new HighlightSpec(spec.tasks, "text", 40, 2, Fragmenter.BOUNDARY_SENTENCE,
+                1000, Integer.MAX_VALUE, false, SpanHighlighter.ENGINE_POSTINGS);
+        
+        assertThat(new HighlightResult.Key(same, 3)).isEqualTo(new HighlightResult.Key(spec, 3));
+        assertThat(new HighlightResult.Key(same, 3).hashCode()).isEqualTo(new HighlightResult.Key(spec, 3).hashCode());
+        assertThat(new HighlightResult.Key(spec, 4)).isNotEqualTo(new HighlightResult.Key(spec, 3));
+        assertThat(offsets).isNotEqualTo(spec);
+        assertThat(postings).isNotEqualTo(spec);
+        
+        Document doc = makeDoc("text", "The banana is yellow and ripe.");
+        assertThat(spec.newHighlighter(schema, HighlightFieldPlan.compile(schema, "text"), MemoryIndexPool.UNPOOLED)
+                .highlightDoc(doc).get("text")).containsExactly("The [banana] is yellow and ripe.");
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeDoc;
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeSchema;
+import static org.assertj.core.api.Assertions.*;
+
+public class TestMemoryIndexPool {
+
+    private static DocumentHighlighter makeHighlighter(MemoryIndexPool pool) {
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(new TermQuery(new Term("text", "banana")));
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]"));
+        return new DocumentHighlighter(makeSchema(), tasks, new String[] { "text" }, pool);
+    }
+
+    /**
+     * Run on a highlighter worker thread, rethrowing anything it throws.
+     */
+    private static void runOnIndexThread(Runnable work) throws Throwable {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new MemoryIndexPool.IndexThread(() -> {
+            try {
+                work.run();
+            }
+            catch (Throwable t) {
+                failure.set(t);
+            }
+        }, "test-index-thread");
+        thread.start();
+        thread.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    @Test
+    public void testPooledIndexIsReset() throws Throwable {
+        MemoryIndexPool pool = new MemoryIndexPool(true);
+        DocumentHighlighter highlighter = makeHighlighter(pool);
+        runOnIndexThread(() -> {
+            Map<String, List<String>> results = highlighter.highlightDoc(makeDoc("text", "what is my banana doing over there?"));
+            assertThat(results.get("text")).containsExactly("what is my [banana] doing over there?");
+
+            // nothing from the first document should be left in the reused index
+            results = highlighter.highlightDoc(makeDoc("text", "an apple a day"));
+            assertThat(results).isEmpty();
+
+            results = highlighter.highlightDoc(makeDoc("text", "banana split"));
+            assertThat(results.get("text")).containsExactly("[banana] split");
+        });
+        assertThat(pool.getMisses()).isEqualTo(1);
+        assertThat(pool.getHits()).isEqualTo(2);
+    }
+
+    @Test
+    public void testOnlyWorkerThreadsReuse() throws Throwable {
+        // any other thread, such as the one running this test, gets a new index every time
+        MemoryIndexPool pool = new MemoryIndexPool(true);
+        MemoryIndex first = pool.acquire();
+        assertThat(pool.acquire()).isNotSameAs(first);
+        assertThat(pool.getHits()).isEqualTo(0);
+        assertThat(pool.getMisses()).isEqualTo(2);
+
+        runOnIndexThread(() -> assertThat(pool.acquire()).isSameAs(pool.acquire()));
+        assertThat(pool.getHits()).isEqualTo(1);
+        assertThat(pool.getMisses()).isEqualTo(3);
+
+        runOnIndexThread(() -> assertThat(MemoryIndexPool.UNPOOLED.acquire()).isNotSameAs(MemoryIndexPool.UNPOOLED.acquire()));
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.solr.schema.IndexSchema;
+
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeDoc;
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeSchema;
+import static org.assertj.core.api.Assertions.*;
+
+public class TestPostingsEngine {
+
+    private static final QueryParser PARSER = new QueryParser("text", new StandardAnalyzer());
+
+    private final IndexSchema schema = makeSchema();
+
+    @Test
+    public void testPostingsEngine() throws IOException, ParseException {
+        org.apache.lucene.document.FieldType offsetsType = new org.apache.lucene.document.FieldType(TextField.TYPE_STORED);
+        offsetsType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        
+        Directory dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            for (String text : new String[] { "no fruit here", "what is my banana doing", "my friend the banana" }) {
+                Document doc = new Document();
+                doc.add(new Field("text", text, offsetsType));
+                doc.add(new Field("text", "over there?", offsetsType));
+                writer.addDocument(doc);
+            }
+        }
+        
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(PARSER.parse("banana over \"my friend\""));
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]")); 
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+        
+        try (IndexReader reader = DirectoryReader.open(dir)) {
+            PostingsEngine engine = PostingsEngine.create(new IndexSearcher(reader), tasks);
+            assertThat(engine).isNotNull();
+            
+            Map<Integer, OffsetCollector> offsets = engine.collect(new int[] { 2, 0 });
+            assertThat(offsets.keySet()).containsOnly(0, 2);
+            assertThat(highlighter.render(reader.document(0), offsets.get(0)).get("text"))
+                .containsExactly("[over] there?");
+            assertThat(highlighter.render(reader.document(2), offsets.get(2)).get("text"))
+                .containsExactly("[my] [friend] the [banana]", "[over] there?");
+            
+            // a budget spent before collection starts still lets something be found
+            HighlightBudget budget = new HighlightBudget(-1, -1, 1);
+            budget.addOffsets(2);
+            offsets = engine.collect(new int[] { 2, 0 }, budget);
+            assertThat(highlighter.render(reader.document(2), offsets.get(2)).get("text"))
+                .containsExactly("[my] [friend] the [banana]", "[over] there?");
+        }
+    }
+
+    @Test
+    public void testPostingsEngineNeedsOffsets() throws IOException {
+        Directory dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            writer.addDocument(makeDoc("text", "what is my banana doing"));
+        }
+        
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(new TermQuery(new Term("text", "banana")));
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]")); 
+        try (IndexReader reader = DirectoryReader.open(dir)) {
+            assertThat(PostingsEngine.create(new IndexSearcher(reader), tasks)).isNull();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.solr.schema.IndexSchema;
+
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeDoc;
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeSchema;
+import static org.assertj.core.api.Assertions.*;
+
+public class TestQueryRewriter {
+
+    private static final QueryParser PARSER = new QueryParser("text", new StandardAnalyzer());
+
+    private final IndexSchema schema = makeSchema();
+
+    @Test
+    public void testMaxExpansions() {
+        AtomicInteger limits = new AtomicInteger();
+        QueryRewriter rewriter = new QueryRewriter(2, limits::incrementAndGet);
+        Document doc = makeDoc("text", "banana bandana banana band bandit");
+
+        // the two most frequent terms are highlighted, with ties broken in term order
+        Query rewritten = rewriter.rewrite(new WildcardQuery(new Term("text", "ban*")));
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]"));
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+        assertThat(highlighter.highlightDoc(doc).get("text")).containsExactly("[banana] bandana [banana] [band] bandit");
+        assertThat(limits.get()).isEqualTo(1);
+
+        rewritten = rewriter.rewrite(new FuzzyQuery(new Term("text", "bandat"), 1));
+        tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]"));
+        highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+        assertThat(highlighter.highlightDoc(doc).get("text")).containsExactly("banana bandana banana band [bandit]");
+        assertThat(limits.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testQueryPruning() throws ParseException {
+        Query query = new BooleanQuery.Builder()
+                .add(PARSER.parse("+banana -apple +(over OR (banana OR doing))"), Occur.MUST)
+                .add(IntPoint.newExactQuery("year", 2018), Occur.FILTER)
+                .add(IntPoint.newRangeQuery("size", 1, 10), Occur.SHOULD)
+                .build();
+        AtomicInteger fallbacks = new AtomicInteger();
+        Query rewritten = new QueryRewriter(QueryRewriter.DEFAULT_MAX_EXPANSIONS, () -> {}, fallbacks::incrementAndGet).rewrite(query);
+        assertThat(rewritten).isEqualTo(QueryRewriter.INSTANCE.rewrite(PARSER.parse("banana over doing")));
+        assertThat(fallbacks.get()).isEqualTo(1);      // the range; the filter and the prohibited clause never highlight
+        assertThat(QueryRewriter.INSTANCE.extractLeaves(rewritten)).hasSize(3);
+
+        // a leaf shared with a higher priority task is only run for that task
+        List<HighlightingTask> tasks = Arrays.asList(
+                new HighlightingTask(1, rewritten, "{", "}"),
+                new HighlightingTask(0, QueryRewriter.INSTANCE.rewrite(PARSER.parse("banana doing")), "[", "]"));
+        List<HighlightingTask> distinct = DocumentHighlighter.distinctTasks(tasks);
+        assertThat(distinct).hasSize(2);
+        assertThat(distinct.get(0).query).isEqualTo(QueryRewriter.INSTANCE.rewrite(new TermQuery(new Term("text", "over"))));
+        assertThat(distinct.get(1)).isSameAs(tasks.get(1));
+
+        Document doc = makeDoc("text", "what is my banana doing over there?");
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "text" });
+        assertThat(highlighter.highlightDoc(doc).get("text")).containsExactly("what is my [banana] [doing] {over} there?");
+
+        // nothing left to highlight
+        rewritten = QueryRewriter.INSTANCE.rewrite(new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("text", "banana")), Occur.MUST_NOT).build());
+        assertThat(QueryRewriter.INSTANCE.extractFields(rewritten)).isEmpty();
+    }
+}
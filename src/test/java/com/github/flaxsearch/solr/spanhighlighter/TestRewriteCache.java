@@ -0,0 +1,66 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class TestRewriteCache {
+
+    @Test
+    public void testHitsAndEvictions() {
+        RewriteCache cache = new RewriteCache(2);
+        
+        Query rewritten = cache.rewrite(new TermQuery(new Term("text", "apple")));
+        assertThat(cache.rewrite(new TermQuery(new Term("text", "apple")))).isSameAs(rewritten);
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+        
+        cache.rewrite(new TermQuery(new Term("text", "banana")));
+        cache.rewrite(new TermQuery(new Term("text", "apple")));
+        cache.rewrite(new TermQuery(new Term("text", "cherry")));     // evicts banana, the least recently used
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        
+        assertThat(cache.rewrite(new TermQuery(new Term("text", "apple")))).isSameAs(rewritten);
+        cache.rewrite(new TermQuery(new Term("text", "banana")));
+        assertThat(cache.getHits()).isEqualTo(3);
+        assertThat(cache.getMisses()).isEqualTo(4);
+    }
+
+    @Test
+    public void testDisabled() {
+        RewriteCache cache = new RewriteCache(0);
+        cache.rewrite(new TermQuery(new Term("text", "apple")));
+        cache.rewrite(new TermQuery(new Term("text", "apple")));
+        assertThat(cache.size()).isEqualTo(0);
+        assertThat(cache.getHits()).isEqualTo(0);
+        assertThat(cache.getMisses()).isEqualTo(2);
+    }
+
+    @Test
+    public void testFallbacksOnEveryLookup() {
+        Query pruned = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("text", "apple")), Occur.SHOULD)
+                .add(IntPoint.newRangeQuery("size", 1, 10), Occur.SHOULD)
+                .build();
+        Query unknown = IntPoint.newExactQuery("year", 2018);
+        for (int size : new int[] { 0, 2 }) {
+            RewriteCache cache = new RewriteCache(size);
+            AtomicInteger fallbacks = new AtomicInteger();
+            for (int i = 0; i < 3; i++) {
+                cache.rewrite(pruned, fallbacks::incrementAndGet);
+                cache.rewrite(unknown, fallbacks::incrementAndGet);
+            }
+            assertThat(fallbacks.get()).as("cache size %d", size).isEqualTo(6);
+        }
+    }
+}
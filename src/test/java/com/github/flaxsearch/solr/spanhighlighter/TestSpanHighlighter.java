@@ -0,0 +1,301 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.PluginInfo;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeSchema;
+import static org.assertj.core.api.Assertions.*;
+
+public class TestSpanHighlighter {
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setup() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testParallelResultsInOrder() throws IOException {
+        int[] order = { 5, 0, 7, 3, 1, 6, 2, 4 };
+        String[] results = new String[order.length];
+        AtomicIntegerArray runs = new AtomicIntegerArray(order.length);
+        SpanHighlighter.forEachDoc(executor, order, 4, i -> {
+            sleep((i * 7) % 5);     // finish out of order
+            runs.incrementAndGet(i);
+            results[i] = "doc" + i;
+        });
+        assertThat(results).containsExactly("doc0", "doc1", "doc2", "doc3", "doc4", "doc5", "doc6", "doc7");
+        for (int i = 0; i < order.length; i++) {
+            assertThat(runs.get(i)).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testParallelFailure() {
+        // no work may still be running once the failure is reported
+        AtomicInteger running = new AtomicInteger();
+        int[] order = { 0, 1, 2, 3, 4, 5, 6, 7 };
+        assertThatThrownBy(() -> SpanHighlighter.forEachDoc(executor, order, 4, i -> {
+            running.incrementAndGet();
+            try {
+                if (i == 1) {
+                    throw new IOException("no such document");
+                }
+                sleep(20);
+            }
+            finally {
+                running.decrementAndGet();
+            }
+        })).isInstanceOf(IOException.class).hasMessage("no such document");
+        assertThat(running.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRewriteFallbacks() {
+        // counted for every request, whether the rewritten queries are cached or not
+        Query query = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("text", "apple")), Occur.SHOULD)
+                .add(IntPoint.newRangeQuery("size", 1, 10), Occur.SHOULD)
+                .build();
+        for (String cacheSize : new String[] { "0", "16" }) {
+            NamedList<Object> args = new NamedList<>();
+            args.add(SpanHighlighter.CONF_REWRITE_CACHE_SIZE, cacheSize);
+            SpanHighlighter highlighter = new SpanHighlighter();
+            highlighter.init(new PluginInfo("highlighting", Collections.emptyMap(), args, null));
+            
+            long before = highlighter.metrics.rewriteFallbacks.getCount();
+            for (int i = 0; i < 3; i++) {
+                highlighter.rewrite(query);
+                highlighter.rewrite(IntPoint.newExactQuery("year", 2018));
+            }
+            assertThat(highlighter.metrics.rewriteFallbacks.getCount() - before).as("cache size %s", cacheSize).isEqualTo(6);
+        }
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        NamedList<Object> args = new NamedList<>();
+        args.add(SpanHighlighter.CONF_THREADS, "2");
+        args.add(SpanHighlighter.CONF_PREFETCH, "2");
+        SpanHighlighter highlighter = new SpanHighlighter();
+        highlighter.init(new PluginInfo("highlighting", Collections.emptyMap(), args, null));
+        highlighter.close();
+        assertThat(highlighter.executor.isShutdown()).isTrue();
+        assertThat(highlighter.prefetchExecutor.isShutdown()).isTrue();
+
+        // documents are still highlighted, by the requesting thread
+        int[] order = { 0, 1, 2, 3 };
+        AtomicIntegerArray runs = new AtomicIntegerArray(order.length);
+        SpanHighlighter.forEachDoc(highlighter.executor, order, 2, runs::incrementAndGet);
+        for (int i = 0; i < order.length; i++) {
+            assertThat(runs.get(i)).isEqualTo(1);
+        }
+    }
+
+    /**
+     * Records what it was asked about each stored field, and what it answered.
+     */
+    private static class RecordingVisitor extends SpanHighlighter.HighlightFieldsVisitor {
+        final List<String> answers = new ArrayList<>();
+
+        RecordingVisitor(SchemaField uniqueKeyField, IndexSchema schema, HighlightFieldPlan plan) {
+            super(uniqueKeyField, name -> plan.get(schema, name) != null, plan.getSingleValuedFields());
+        }
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) throws IOException {
+            Status status = super.needsField(fieldInfo);
+            answers.add(fieldInfo.name + ":" + status);
+            return status;
+        }
+    }
+
+    @Test
+    public void testHighlightFieldsVisitor() throws IOException {
+        Directory dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            Document doc = new Document();
+            doc.add(new StringField("id", "1", Field.Store.YES));
+            doc.add(new TextField("title", "banana split", Field.Store.YES));
+            doc.add(new StoredField("raw", new String(new char[100000]).replace('\0', 'x')));
+            doc.add(new TextField("body", "a banana", Field.Store.YES));
+            doc.add(new TextField("body", "another banana", Field.Store.YES));
+            doc.add(new StoredField("tail", "not highlighted"));
+            writer.addDocument(doc);
+        }
+        IndexSchema schema = makeSchema();
+        SchemaField body = mock(SchemaField.class);
+        when(body.multiValued()).thenReturn(true);
+        when(schema.getFieldOrNull("body")).thenReturn(body);
+        SchemaField id = mock(SchemaField.class);
+        when(id.getName()).thenReturn("id");
+
+        try (IndexReader reader = DirectoryReader.open(dir)) {
+            // a single-valued field: the rest of the document isn't read once it and the key have been
+            RecordingVisitor visitor = new RecordingVisitor(id, schema, HighlightFieldPlan.compile(schema, "title"));
+            reader.document(0, visitor);
+            assertThat(visitor.answers).containsExactly("id:YES", "title:YES", "raw:STOP");
+            assertThat(visitor.getDocument().getFields()).extracting(IndexableField::name).containsExactly("id", "title");
+
+            // a multi-valued or wildcard field: every field is passed, but only the ones to highlight are loaded
+            for (String hlFl : new String[] { "title body", "title bo*" }) {
+                visitor = new RecordingVisitor(id, schema, HighlightFieldPlan.compile(schema, hlFl));
+                reader.document(0, visitor);
+                assertThat(visitor.answers).as(hlFl)
+                        .containsExactly("id:YES", "title:YES", "raw:NO", "body:YES", "body:YES", "tail:NO");
+                assertThat(visitor.getDocument().getValues("body")).as(hlFl).containsExactly("a banana", "another banana");
+                assertThat(visitor.getDocument().get("raw")).as(hlFl).isNull();
+            }
+        }
+    }
+
+    /**
+     * @return a result page with the given documents, in that order.
+     */
+    private static DocList makeDocList(int... docIds) {
+        DocList docs = mock(DocList.class);
+        when(docs.size()).thenReturn(docIds.length);
+        when(docs.iterator()).thenAnswer(x -> new DocIterator() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < docIds.length;
+            }
+
+            @Override
+            public Integer next() {
+                return nextDoc();
+            }
+
+            @Override
+            public int nextDoc() {
+                return docIds[next++];
+            }
+
+            @Override
+            public float score() {
+                return docIds.length - next;
+            }
+        });
+        return docs;
+    }
+
+    @Test
+    public void testDocIdOrder() throws IOException {
+        Directory dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            for (int i = 0; i < 4; i++) {
+                Document doc = new Document();
+                doc.add(new StringField("id", "d" + i, Field.Store.YES));
+                doc.add(new TextField("text", "a banana for d" + i, Field.Store.YES));
+                writer.addDocument(doc);
+            }
+        }
+
+        try (IndexReader reader = DirectoryReader.open(dir)) {
+            IndexSchema schema = makeSchema();
+            SchemaField id = mock(SchemaField.class);
+            when(id.getName()).thenReturn("id");
+            when(schema.getUniqueKeyField()).thenReturn(id);
+            when(schema.printableUniqueKey(any())).thenAnswer(x -> x.<Document>getArgument(0).get("id"));
+            List<Integer> loaded = new ArrayList<>();
+            SolrIndexSearcher searcher = mock(SolrIndexSearcher.class);
+            when(searcher.getSchema()).thenReturn(schema);
+            doAnswer(x -> {
+                loaded.add(x.getArgument(0));
+                reader.document(x.getArgument(0), x.<StoredFieldVisitor>getArgument(1));
+                return null;
+            }).when(searcher).doc(anyInt(), any(StoredFieldVisitor.class));
+
+            SpanHighlighter highlighter = new SpanHighlighter();
+            DocList docs = makeDocList(2, 0, 3, 1);
+            Query query = new TermQuery(new Term("text", "banana"));
+            for (String maxChars : new String[] { "-1", "1000", "20" }) {
+                ModifiableSolrParams params = new ModifiableSolrParams();
+                params.set(SpanHighlighter.HL_FL, "text");
+                params.set(SpanHighlighter.HL_PREFILTER, false);
+                params.set(SpanHighlighter.HL_MAX_ANALYZED_CHARS_PER_REQUEST, maxChars);
+                SolrQueryRequest req = mock(SolrQueryRequest.class);
+                when(req.getSearcher()).thenReturn(searcher);
+                when(req.getParams()).thenReturn(params);
+                loaded.clear();
+
+                NamedList<Object> results = highlighter.doHighlighting(docs, query, req, null);
+                List<String> keys = new ArrayList<>();
+                results.forEach(x -> keys.add(x.getKey()));
+                switch (maxChars) {
+                    case "-1":
+                        // loaded and highlighted in docid order, but returned in DocList order
+                        assertThat(loaded).containsExactly(0, 1, 2, 3);
+                        assertThat(keys).containsExactly("d2", "d0", "d3", "d1");
+                        break;
+                    case "1000":
+                        // with a budget, the documents are highlighted in score order
+                        assertThat(loaded).containsExactly(2, 0, 3, 1);
+                        assertThat(keys).containsExactly("d2", "d0", "d3", "d1");
+                        break;
+                    default:
+                        // so when it runs out, the lowest ranked documents are the ones left out
+                        assertThat(loaded).containsExactly(2, 0);
+                        assertThat(keys).containsExactly("d2", "d0");
+                }
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
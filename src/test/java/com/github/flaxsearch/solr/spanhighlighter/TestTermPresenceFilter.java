@@ -0,0 +1,62 @@
+package com.github.flaxsearch.solr.spanhighlighter;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.solr.schema.IndexSchema;
+
+import static com.github.flaxsearch.solr.spanhighlighter.TestDocumentHighlighter.makeSchema;
+import static org.assertj.core.api.Assertions.*;
+
+public class TestTermPresenceFilter {
+
+    private static final QueryParser PARSER = new QueryParser("text", new StandardAnalyzer());
+
+    private final IndexSchema schema = makeSchema();
+
+    @Test
+    public void testTermPresenceFilter() throws IOException, ParseException {
+        Directory dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()))) {
+            String[][] docs = { { "banana split", "apple pie" }, { "apple crumble", "banana bread" }, { "apple", "pear" } };
+            for (String[] fields : docs) {
+                Document doc = new Document();
+                doc.add(new Field("title", fields[0], TextField.TYPE_STORED));
+                doc.add(new Field("body", fields[1], TextField.TYPE_STORED));
+                writer.addDocument(doc);
+            }
+        }
+        
+        Query rewritten = QueryRewriter.INSTANCE.rewrite(PARSER.parse("title:banana body:banana"));
+        List<HighlightingTask> tasks = Arrays.asList(new HighlightingTask(0, rewritten, "[", "]")); 
+        DocumentHighlighter highlighter = new DocumentHighlighter(schema, tasks, new String[] { "title", "body" });
+        
+        try (IndexReader reader = DirectoryReader.open(dir)) {
+            TermPresenceFilter filter = TermPresenceFilter.create(new IndexSearcher(reader), tasks, highlighter, new int[] { 2, 0, 1 });
+            assertThat(filter).isNotNull();
+            assertThat(filter.mayMatchAny(0)).isFalse();
+            assertThat(filter.mayMatchAny(1)).isTrue();
+            assertThat(filter.mayMatch(1, "title")).isTrue();
+            assertThat(filter.mayMatch(1, "body")).isFalse();
+            assertThat(filter.mayMatch(2, "title")).isFalse();
+            assertThat(filter.mayMatch(2, "body")).isTrue();
+        }
+    }
+}